@@ -0,0 +1,102 @@
+package fiji.updater;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the reflective dispatch of {@link Adapter} and the inference of
+ * the ImageJ root directory.
+ *
+ * The reflective helpers are exercised on JDK classes, so that the numbers
+ * do not depend on the ImageJ updater being available.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AdapterBenchmark {
+	private Adapter adapter;
+	private StringBuilder builder;
+	private Class<?>[] types;
+	private Object[] parameters;
+	private String ijDir;
+
+	@Setup
+	public void setUp() {
+		adapter = new Adapter(false);
+		builder = new StringBuilder("Fiji Updater");
+		types = new Class<?>[] { String.class, int.class, Object.class, File.class };
+		parameters = new Object[] { "a", 1, null, new File(".") };
+		ijDir = System.getProperty("ij.dir");
+	}
+
+	@TearDown(Level.Iteration)
+	public void restore() {
+		if (ijDir == null)
+			System.clearProperty("ij.dir");
+		else
+			System.setProperty("ij.dir", ijDir);
+	}
+
+	/**
+	 * A cached call site with a primitive parameter.
+	 */
+	@Benchmark
+	public Object invoke() throws Exception {
+		return Adapter.invoke(builder, "charAt", 3);
+	}
+
+	/**
+	 * A cached call site with a <i>null</i> parameter.
+	 */
+	@Benchmark
+	public Object invokeWithNull() throws Exception {
+		return Adapter.invoke(builder, "equals", (Object)null);
+	}
+
+	@Benchmark
+	public Object newInstance() throws Exception {
+		return adapter.newInstance("java.lang.StringBuilder", "Fiji");
+	}
+
+	@Benchmark
+	public boolean doParametersMatch() {
+		return Adapter.doParametersMatch(types, parameters);
+	}
+
+	/**
+	 * The common case: <i>ij.dir</i> is already set.
+	 */
+	@Benchmark
+	public String ensureIJDirIsSet() {
+		if (System.getProperty("ij.dir") == null)
+			System.setProperty("ij.dir", System.getProperty("user.dir"));
+		Adapter.ensureIJDirIsSet();
+		return System.getProperty("ij.dir");
+	}
+
+	/**
+	 * Infer <i>ij.dir</i> from the location of the {@link Adapter} class.
+	 */
+	@Benchmark
+	public String inferIJDir() {
+		System.clearProperty("ij.dir");
+		Adapter.ensureIJDirIsSet();
+		return System.getProperty("ij.dir");
+	}
+}
@@ -0,0 +1,119 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the checksumming of local files.
+ *
+ * A fixture ImageJ root directory with plain files is generated in the
+ * temporary directory. The files are hashed with {@link FileDigest} rather
+ * than by the ImageJ updater, so that the numbers do not depend on the
+ * updater being available.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChecksumBenchmark {
+	@Param({ "1", "4" })
+	public int threads;
+
+	private File ijDir, large;
+	private Adapter adapter;
+
+	@Setup
+	public void setUp() throws Exception {
+		ijDir = File.createTempFile("checksum-benchmark-", "");
+		ijDir.delete();
+		Random random = new Random(17);
+		large = new File(ijDir, "images/large.tif");
+		write(large, 16 << 20, random);
+		for (int i = 0; i < 500; i++)
+			write(new File(ijDir, "macros/dir-" + (i % 10) + "/macro-" + i + ".ijm"), 4096 + random.nextInt(65536), random);
+		adapter = new Adapter(false) {
+			@Override
+			String getDigest(String path, File file) throws IOException {
+				return FileDigest.digest(path, file);
+			}
+
+			@Override
+			long getTimestamp(File file) {
+				return file.lastModified();
+			}
+		};
+		// warm the checksum index
+		new LocalScan(adapter, ijDir, threads, new ChecksumIndex(ijDir)).run(new StderrUI());
+	}
+
+	@TearDown
+	public void tearDown() {
+		delete(ijDir);
+	}
+
+	@Benchmark
+	public String digest() throws IOException {
+		return FileDigest.digest("images/large.tif", large);
+	}
+
+	@Benchmark
+	public String streamDigest() throws IOException {
+		return FileDigest.streamDigest("images/large.tif", large);
+	}
+
+	@Benchmark
+	public List<String> listFiles() {
+		return new LocalScan(adapter, ijDir, threads, null).listFiles();
+	}
+
+	@Benchmark
+	public SortedMap<String, LocalScan.Entry> coldScan() throws Exception {
+		return new LocalScan(adapter, ijDir, threads, null).run(new StderrUI());
+	}
+
+	@Benchmark
+	public SortedMap<String, LocalScan.Entry> warmScan() throws Exception {
+		return new LocalScan(adapter, ijDir, threads, new ChecksumIndex(ijDir)).run(new StderrUI());
+	}
+
+	private static void write(File file, int size, Random random) throws IOException {
+		file.getParentFile().mkdirs();
+		byte[] buffer = new byte[size];
+		random.nextBytes(buffer);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(buffer);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] list = file.listFiles();
+		if (list != null)
+			for (File child : list)
+				delete(child);
+		file.delete();
+	}
+}
@@ -0,0 +1,157 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks a complete installation of the ImageJ updater, i.e.
+ * {@link Adapter#firstTime()}, into a fresh ImageJ root directory.
+ *
+ * A fixture update site is generated in the temporary directory and both
+ * the Fiji and the ImageJ update site are redirected to it via
+ * <i>fiji.updater.mirror</i>, so that the numbers do not depend on the
+ * network. The site offers the ImageJ updater's <i>.jar</i> files, taken from
+ * the persistent cache (see {@link RemoteJars}); they are downloaded into the
+ * cache only if it does not have them yet.
+ *
+ * The parameters compare concurrent downloads and verifying the files while
+ * they stream in (<i>fiji.updater.nio</i>) against reading them back.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FirstTimeBenchmark {
+	private final static String FIJI_SITE = "http://fiji.sc/update/";
+
+	@Param({ "1", "4" })
+	public int connections;
+
+	@Param({ "true", "false" })
+	public String nio;
+
+	private File root, site;
+	private Adapter adapter;
+	private int count;
+	private final Map<String, String> properties = new LinkedHashMap<String, String>();
+
+	@Setup
+	public void setUp() throws Exception {
+		root = Files.createTempDirectory("first-time-benchmark-").toFile();
+		site = new File(root, "site");
+		RemoteJars remote = new RemoteJars(Adapter.JARS_PREFIX, RemoteJars.getCacheDirectory());
+		File[] jars = remote.getCached();
+		if (jars == null)
+			jars = remote.download();
+
+		String url = site.toURI().toString();
+		setProperty(Mirror.MIRROR_PROPERTY, FIJI_SITE + "=" + url + "," + url);
+		setProperty(ParallelInstaller.CONNECTIONS_PROPERTY, String.valueOf(connections));
+		setProperty(Adapter.NIO_PROPERTY, nio);
+		setProperty("ij.dir", root.getPath());
+
+		adapter = new Adapter(false);
+		if (!adapter.loadUpdater())
+			throw new IOException("Could not load the ImageJ updater");
+		writeSite(jars);
+	}
+
+	/**
+	 * Start every invocation with an empty ImageJ root directory.
+	 *
+	 * The directories of previous invocations are kept until the end of the
+	 * trial, as their <i>.jar</i> files make up the class path of the remote
+	 * updater that {@link Adapter#firstTime()} leaves behind.
+	 */
+	@Setup(Level.Invocation)
+	public void newIJDir() {
+		File ijDir = new File(root, "ij-" + count++);
+		ijDir.mkdirs();
+		System.setProperty("ij.dir", ijDir.getPath());
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (Map.Entry<String, String> entry : properties.entrySet())
+			if (entry.getValue() == null)
+				System.clearProperty(entry.getKey());
+			else
+				System.setProperty(entry.getKey(), entry.getValue());
+		delete(root);
+	}
+
+	@Benchmark
+	public void firstTime() throws Exception {
+		adapter.firstTime();
+	}
+
+	/**
+	 * Write the fixture update site.
+	 *
+	 * Every <i>.jar</i> file depends on the ones following it in
+	 * {@link Adapter#JARS}, so that the first one pulls in all of them.
+	 */
+	private void writeSite(File[] jars) throws Exception {
+		StringBuilder records = new StringBuilder();
+		records.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<pluginRecords>\n");
+		for (int i = 0; i < jars.length; i++) {
+			String filename = "jars/" + RemoteJars.getFileName(i);
+			File file = new File(site, filename + "-" + Adapter.TIMESTAMPS[i]);
+			file.getParentFile().mkdirs();
+			Files.copy(jars[i].toPath(), file.toPath());
+			records.append(" <plugin filename=\"").append(filename).append("\">\n");
+			records.append("  <version checksum=\"").append(adapter.getUpdaterDigest(filename, file))
+				.append("\" timestamp=\"").append(Adapter.TIMESTAMPS[i])
+				.append("\" filesize=\"").append(file.length()).append("\"/>\n");
+			for (int j = i + 1; j < jars.length; j++)
+				records.append("  <dependency filename=\"jars/").append(RemoteJars.getFileName(j))
+					.append("\" timestamp=\"").append(Adapter.TIMESTAMPS[j]).append("\"/>\n");
+			records.append(" </plugin>\n");
+		}
+		records.append("</pluginRecords>\n");
+		Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(new File(site, "db.xml.gz"))), "UTF-8");
+		try {
+			out.write(records.toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	private void setProperty(String key, String value) {
+		if (!properties.containsKey(key))
+			properties.put(key, System.getProperty(key));
+		System.setProperty(key, value);
+	}
+
+	private static void delete(File file) {
+		File[] list = file.listFiles();
+		if (list != null)
+			for (File child : list)
+				delete(child);
+		file.delete();
+	}
+}
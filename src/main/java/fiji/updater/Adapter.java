@@ -3,19 +3,35 @@ package fiji.updater;
 import java.awt.Frame;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPOutputStream;
 
 import javax.swing.JOptionPane;
@@ -45,17 +61,40 @@ public class Adapter {
 	private final static String UPTODATE_CLASS_NAME = "imagej.updater.core.UpToDate";
 	private final static String SWING_PROGRESS_CLASS_NAME = "imagej.updater.gui.ProgressDialog";
 	private final static String STDERR_PROGRESS_CLASS_NAME = "imagej.updater.util.StderrProgress";
+	private final static String PROGRESS_CLASS_NAME = "imagej.updater.util.Progress";
 	private final String progressClassName;
 	private final static String CHECKSUMMER_CLASS_NAME = "imagej.updater.core.Checksummer";
 	private final static String COLLECTION_CLASS_NAME = "imagej.updater.core.FilesCollection";
 	private static final String DOWNLOADER_CLASS_NAME = "imagej.updater.core.XMLFileDownloader";
 	private final static String INSTALLER_CLASS_NAME = "imagej.updater.core.Installer";
 	private static final String COMMAND_LINE_CLASS_NAME = "imagej.updater.ui.CommandLine";
+	private final static String UTIL_CLASS_NAME = "imagej.updater.util.Util";
+
+	/**
+	 * The system property specifying the number of threads to use to
+	 * checksum the local files; values larger than 1 enable the parallel scan.
+	 */
+	public final static String THREADS_PROPERTY = "fiji.updater.threads";
+
+	/**
+	 * The system property to set to <i>false</i> to opt out of the persistent
+	 * checksum index in the ImageJ root directory.
+	 */
+	public final static String CHECKSUM_INDEX_PROPERTY = "fiji.updater.checksumIndex";
+
+	/**
+	 * The system property to set to <i>false</i> to hash all files via the
+	 * ImageJ updater rather than via NIO.
+	 */
+	public final static String NIO_PROPERTY = "fiji.updater.nio";
 
 	private static ClassLoader remoteClassLoader;
 	private static Object progress;
+	private final static Map<Signature, MethodHandle> handles = new ConcurrentHashMap<Signature, MethodHandle>();
+	private volatile Boolean nioMatchesUpdater, jarDigestMatchesUpdater;
 
 	private UI ui;
+	private int threads = Integer.getInteger(THREADS_PROPERTY, 0);
 
 	/**
 	 * Construct a new Adapter object.
@@ -69,6 +108,21 @@ public class Adapter {
 		progressClassName = useIJ1 ? SWING_PROGRESS_CLASS_NAME : STDERR_PROGRESS_CLASS_NAME;
 	}
 
+	/**
+	 * Set the number of threads to use to checksum the local files.
+	 * 
+	 * The default is taken from the <i>fiji.updater.threads</i> system
+	 * property. With more than one thread, {@link #getFileList()} and
+	 * {@link #getInstalledVersions()} walk the ImageJ root directory in
+	 * parallel.
+	 * 
+	 * @param threads
+	 *            the number of worker threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 	/**
 	 * This implements the up-to-date check on startup, based on the ImageJ
 	 * updater.
@@ -177,7 +231,7 @@ public class Adapter {
 
 	public void runCommandLineUpdater(String[] args) {
 		try {
-			progress = newInstance(progressClassName);
+			progress = progressClassName == STDERR_PROGRESS_CLASS_NAME ? newStderrProgress() : newInstance(progressClassName);
 		} catch (Exception e) {
 			ui.error("The Updater could not get the progress object:");
 			ui.handleException(e);
@@ -210,63 +264,283 @@ public class Adapter {
 	 * accessing the precise file versions specified in the {@link #JARS},
 	 * {@link #VERSIONS} and {@link #TIMESTAMPS} fields.
 	 * 
+	 * The files are installed while holding an {@link UpdateLock}, so that
+	 * concurrent processes sharing the ImageJ root directory do not clobber
+	 * each other's work.
+	 * 
 	 * @throws Exception
 	 */
 	protected void firstTime() throws Exception {
 		File ijDir = new File(System.getProperty("ij.dir"));
 
+		Metrics.Phase phase = Metrics.get().start("lock");
+		UpdateLock lock = UpdateLock.acquire(ijDir, ui);
+		phase.end();
+		Map<String, Object> files;
+		try {
+			files = installUpdater(ijDir, lock.waited());
+		} finally {
+			lock.release();
+		}
+
+		List<URL> classPath = new ArrayList<URL>();
+		Object guiFile = invoke(files, "get", "jars/" + JARS[0] + ".jar");
+		Iterable<Object> dependencies = invoke(guiFile, "getFileDependencies", files, true);
+		for (Object file : dependencies)
+			classPath.add(new File(ijDir, (String)invoke(file, "getLocalFilename", false)).toURI().toURL());
+		setRemoteClassLoader(new URLClassLoader(classPath.toArray(new URL[classPath.size()]), String.class.getClassLoader()));
+		if (!Proxy.isProxyClass(progress.getClass()))
+			progress = loadClass(progress.getClass().getName());
+
+		// Blow away ImageJ's class loader so we can pick up the newly downloaded classes
+		if (progressClassName != SWING_PROGRESS_CLASS_NAME) try {
+			invokeStatic("ij.IJ", "run", "Refresh Menus");
+		} catch (Throwable t) {
+			if (!"Could not find class: ij.IJ".equals(t.getMessage()))
+				ui.handleException(t);
+		}
+	}
+
+	/**
+	 * Install the ImageJ updater's files, holding the lock on the ImageJ root
+	 * directory.
+	 *
+	 * If another process held the lock before us, it most likely installed
+	 * the very same files already; in that case, we reuse its result rather
+	 * than checksumming, downloading and moving the files again.
+	 *
+	 * The files are downloaded by the {@link ParallelInstaller}, which
+	 * verifies them while they stream in (see
+	 * {@link #canDigestWhileDownloading(String)}); only moving them into place
+	 * is left to the updater's own {@code Installer}.
+	 *
+	 * @param ijDir
+	 *            the ImageJ root directory
+	 * @param waited
+	 *            whether another process held the lock before us
+	 * @return the {@code FilesCollection}
+	 * @throws Exception
+	 */
+	private Map<String, Object> installUpdater(File ijDir, boolean waited) throws Exception {
+		Metrics metrics = Metrics.get();
+
 		File dbXmlGz = new File(ijDir, "db.xml.gz");
 		if (!dbXmlGz.exists()) {
+			Metrics.Phase phase = metrics.start("write db.xml.gz");
 			OutputStream out = new GZIPOutputStream(new FileOutputStream(dbXmlGz));
 			out.write("<pluginRecords><update-site name=\"Fiji\" url=\"http://fiji.sc/update/\" timestamp=\"0\"/></pluginRecords>".getBytes());
 			out.close();
+			phase.addBytes(dbXmlGz.length()).addFiles(1).end();
 		}
 
 		List<String> filenames = new ArrayList<String>();
 		for (int i = 0; i < JARS.length; i++)
 			filenames.add("jars/" + JARS[i] + VERSIONS[i] + ".jar");
 
+		Metrics.Phase phase = metrics.start("read");
 		Map<String, Object> files = newInstance(COLLECTION_CLASS_NAME, ijDir);
 		try {
 			invoke(files, "read");
 		} catch (Exception e) { /* ignore */ }
-		Object downloader = newInstance(DOWNLOADER_CLASS_NAME, files);
-		invoke(downloader, "start", false);
-		Object checksummer = newInstance(CHECKSUMMER_CLASS_NAME, files, getProgress());
-		invoke(checksummer, "updateFromLocal", filenames);
-		for (String key : files.keySet())
-			invoke(files.get(key), "setNoAction");
+		phase.addBytes(dbXmlGz.length()).addFiles(files.size()).end();
+		// use the mirror, but do not let its URLs end up in db.xml.gz
+		Map<Object, String> urls = Mirror.rewrite(files);
+		try {
+			phase = metrics.start("download db.xml.gz");
+			Object downloader = newInstance(DOWNLOADER_CLASS_NAME, files);
+			invoke(downloader, "start", false);
+			phase.addFiles(files.size()).end();
+			if (waited && areInstalled(ijDir, filenames)) {
+				ui.showStatus("Reusing the ImageJ updater installed by another process");
+				return files;
+			}
+			phase = metrics.start("checksum");
+			Object checksummer = newInstance(CHECKSUMMER_CLASS_NAME, files, getProgress());
+			invoke(checksummer, "updateFromLocal", filenames);
+			phase.addFiles(filenames.size()).end();
+			phase = metrics.start("stage");
+			phase.addFiles(stageForUpdate(files, filenames)).end();
+			phase = metrics.start("install");
+			int connections = Integer.getInteger(ParallelInstaller.CONNECTIONS_PROPERTY, 1);
+			List<Object> toInstall = new ArrayList<Object>();
+			for (String filename : filenames)
+				toInstall.add(files.get(filename));
+			phase.addBytes(new ParallelInstaller(this, files, getProgress(), ijDir, connections).start(toInstall));
+			phase.addFiles(filenames.size()).end();
+			phase = metrics.start("move into place");
+			invoke(newInstance(INSTALLER_CLASS_NAME, files, getProgress()), "moveUpdatedIntoPlace");
+			phase.addFiles(filenames.size()).end();
+			return files;
+		} finally {
+			setUpdateSiteURLs(urls);
+		}
+	}
+
+	/**
+	 * Determine whether the given files are installed, with no update
+	 * pending.
+	 *
+	 * @param ijDir
+	 *            the ImageJ root directory
+	 * @param filenames
+	 *            the files
+	 * @return whether all files are in place
+	 */
+	private static boolean areInstalled(File ijDir, Collection<String> filenames) {
+		File update = new File(ijDir, "update");
 		for (String filename : filenames)
-			invoke(files.get(filename), "stageForUpdate", files, false);
-		Object installer = newInstance(INSTALLER_CLASS_NAME, files, getProgress());
-		invoke(installer, "start");
-		invoke(installer, "moveUpdatedIntoPlace");
+			if (!new File(ijDir, filename).isFile() || new File(update, filename).exists())
+				return false;
+		return true;
+	}
 
-		List<URL> classPath = new ArrayList<URL>();
-		Object guiFile = invoke(files, "get", "jars/" + JARS[0] + ".jar");
-		Iterable<Object> dependencies = invoke(guiFile, "getFileDependencies", files, true);
-		for (Object file : dependencies)
-			classPath.add(new File(ijDir, (String)invoke(file, "getLocalFilename", false)).toURI().toURL());
-		remoteClassLoader = new URLClassLoader(classPath.toArray(new URL[classPath.size()]), String.class.getClassLoader());
-		progress = loadClass(progress.getClass().getName());
+	/**
+	 * Stage exactly the given files for update.
+	 * 
+	 * All other files are reset to have no action. Rather than resetting
+	 * every single entry of the collection, only the entries with a pending
+	 * action are reset, as reported by the {@code FilesCollection}'s
+	 * {@code changes()} method; if that method is unavailable, we fall back
+	 * to resetting all entries.
+	 * 
+	 * @param files
+	 *            the {@code FilesCollection}
+	 * @param filenames
+	 *            the names of the files to stage
+	 * @return the number of entries that were touched
+	 * @throws Exception
+	 */
+	protected int stageForUpdate(Map<String, Object> files, Collection<String> filenames) throws Exception {
+		Set<Object> toStage = new HashSet<Object>();
+		for (String filename : filenames) {
+			Object file = files.get(filename);
+			if (file == null)
+				throw new IllegalArgumentException("Unknown file: " + filename);
+			toStage.add(file);
+		}
 
-		// Blow away ImageJ's class loader so we can pick up the newly downloaded classes
-		if (progressClassName != SWING_PROGRESS_CLASS_NAME) try {
-			invokeStatic("ij.IJ", "run", "Refresh Menus");
-		} catch (Throwable t) {
-			if (!"Could not find class: ij.IJ".equals(t.getMessage()))
-				ui.handleException(t);
+		Iterable<Object> changes;
+		try {
+			changes = invoke(files, "changes");
+		} catch (NoSuchMethodException e) {
+			changes = files.values();
+		}
+		List<Object> toReset = new ArrayList<Object>();
+		for (Object file : changes)
+			if (!toStage.contains(file))
+				toReset.add(file);
+
+		for (Object file : toReset)
+			invoke(file, "setNoAction");
+		for (Object file : toStage)
+			invoke(file, "stageForUpdate", files, false);
+		return toReset.size() + toStage.size();
+	}
+
+	/**
+	 * Update all updateable files of a given ImageJ root directory.
+	 *
+	 * This is the per-root work of the {@link Fleet fleet mode}. Unlike the
+	 * command-line updater, it does not rely on the <i>ij.dir</i> property,
+	 * so that several roots can be updated concurrently. The downloads are
+	 * shared with the other roots via the given {@link SharedArtifacts}, and
+	 * the update sites' <i>db.xml.gz</i> files via the given
+	 * {@link Fleet.Sites}.
+	 *
+	 * The root is updated while holding its {@link UpdateLock}, so that
+	 * updaters running in other processes do not clobber our work. The
+	 * installer runs even if there is nothing to download, as obsolete files
+	 * still need to be uninstalled.
+	 *
+	 * @param ijDir
+	 *            the ImageJ root directory
+	 * @param artifacts
+	 *            the downloads shared between all roots
+	 * @param sites
+	 *            the update sites shared between all roots
+	 * @param result
+	 *            the result to record the number of files and bytes in
+	 * @throws Exception
+	 */
+	void update(File ijDir, SharedArtifacts artifacts, Fleet.Sites sites, Fleet.Result result) throws Exception {
+		UpdateLock lock = UpdateLock.acquire(ijDir, ui);
+		try {
+			Object progress = newStderrProgress();
+			Map<String, Object> files = newInstance(COLLECTION_CLASS_NAME, ijDir);
+			if (new File(ijDir, "db.xml.gz").exists())
+				invoke(files, "read");
+			Map<Object, String> mirrored = Mirror.rewrite(files);
+			Map<Object, String> urls = sites.redirect(files);
+			try {
+				invoke(newInstance(DOWNLOADER_CLASS_NAME, files), "start", false);
+			} finally {
+				setUpdateSiteURLs(urls);
+			}
+			invoke(newInstance(CHECKSUMMER_CLASS_NAME, files, progress), "updateFromLocal");
+			invoke(files, "markForUpdate", false);
+
+			List<Object> toInstall = new ArrayList<Object>();
+			for (Object file : Adapter.<Iterable<Object>>invoke(files, "toInstallOrUpdate"))
+				toInstall.add(file);
+			int toUninstall = 0;
+			for (Iterator<Object> iter = Adapter.<Iterable<Object>>invoke(files, "toUninstall").iterator(); iter.hasNext(); iter.next())
+				toUninstall++;
+			int connections = Integer.getInteger(ParallelInstaller.CONNECTIONS_PROPERTY, 1);
+			ParallelInstaller installer = new ParallelInstaller(this, files, progress, ijDir, connections);
+			installer.setSharedArtifacts(artifacts);
+			try {
+				result.bytes += installer.start(toInstall);
+			} finally {
+				setUpdateSiteURLs(mirrored);
+			}
+			invoke(newInstance(INSTALLER_CLASS_NAME, files, progress), "moveUpdatedIntoPlace");
+			invoke(files, "write");
+			result.files = toInstall.size() + toUninstall;
+		} finally {
+			lock.release();
 		}
 	}
 
+	/**
+	 * Make sure that the ImageJ updater's classes can be loaded.
+	 *
+	 * This needs to be done before accessing the updater from multiple
+	 * threads, as the remote class loader is initialized lazily.
+	 *
+	 * @return whether the updater is available
+	 */
+	boolean loadUpdater() {
+		return loadClass(COLLECTION_CLASS_NAME) != null;
+	}
+
+	/**
+	 * Get the user interface to report to.
+	 *
+	 * @return the user interface
+	 */
+	UI getUI() {
+		return ui;
+	}
+
 	/**
 	 * Utility method for the quick up-to-date check in fiji.Main
 	 *
+	 * The result is cached in the ImageJ root directory; see
+	 * {@link CheckCache}.
+	 *
 	 * @return a tag describing whether we should run the Updater
 	 */
 	public String check() {
 		try {
-			return invokeStatic(UPTODATE_CLASS_NAME, "check").toString();
+			String ijDir = System.getProperty("ij.dir");
+			CheckCache cache = ijDir == null ? null : new CheckCache(new File(ijDir));
+			String result = cache == null ? null : cache.get();
+			if (result != null)
+				return result;
+			result = invokeStatic(UPTODATE_CLASS_NAME, "check").toString();
+			if (cache != null)
+				cache.put(result);
+			return result;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -275,11 +549,22 @@ public class Adapter {
 	/**
 	 * Utility method for the fiji.packaging.Package_Maker
 	 *
+	 * When scanning locally, only the directories are walked; the files are
+	 * not checksummed, as only their names are needed.
+	 *
 	 * @return the list of files the Updater cares about
 	 * @throws Exception
 	 */
 	@SuppressWarnings("unchecked")
 	public Collection<String> getFileList() throws Exception {
+		if (useLocalScan()) {
+			Metrics.Phase phase = Metrics.get().start("list files");
+			List<String> result = new LocalScan(this, new File(System.getProperty("ij.dir")), threads, null).listFiles();
+			Collections.sort(result);
+			phase.addFiles(result.size()).end();
+			return result;
+		}
+
 		Map<String, Object> collection = newInstance(COLLECTION_CLASS_NAME, new File(System.getProperty("ij.dir")));
 		Object checksummer = newInstance(CHECKSUMMER_CLASS_NAME, collection, getProgress());
 
@@ -306,7 +591,36 @@ public class Adapter {
 	 */
 	@Deprecated
 	public String getInstalledVersions() {
+		StringWriter writer = new StringWriter();
+		return writeInstalledVersions(writer) ? writer.toString() : null;
+	}
+
+	/**
+	 * Write the list of files known to the Updater, with versions.
+	 * 
+	 * Each file is written as a line of the form
+	 * <code>  &lt;checksum&gt; &lt;timestamp&gt; &lt;file&gt;</code>, sorted
+	 * by path. Each line is written as soon as the file and all files sorting
+	 * before it have been checksummed. The writer is only accessed by one
+	 * thread at a time, but not necessarily by the calling thread.
+	 * 
+	 * @param writer
+	 *            the writer to write the lines to
+	 * @return whether the list was written successfully
+	 */
+	public boolean writeInstalledVersions(final Writer writer) {
 		try {
+			if (useLocalScan()) {
+				scanLocal(new LocalScan.Listener() {
+					@Override
+					public void checksummed(LocalScan.Entry entry) throws IOException {
+						writeVersion(writer, entry.path, entry.checksum, entry.timestamp);
+					}
+				});
+				writer.flush();
+				return true;
+			}
+
 			Map<String, Object> collection = newInstance(COLLECTION_CLASS_NAME, new File(System.getProperty("ij.dir")));
 			Object checksummer = newInstance(CHECKSUMMER_CLASS_NAME, collection, getProgress());
 
@@ -314,28 +628,240 @@ public class Adapter {
 				invoke(checksummer, "updateFromLocal");
 			} catch (Throwable t) {
 				ui.error("Canceled");
-				return null;
+				return false;
 			}
 
-			Map<String, Object> checksums = invoke(checksummer, "getCachedChecksums");
-
-			StringBuffer sb = new StringBuffer();
+			Map<String, Object> checksums = new TreeMap<String, Object>((Map<String, Object>)invoke(checksummer, "getCachedChecksums"));
 
 			for (Map.Entry<String, Object> entry : checksums.entrySet()) {
-				    String file = entry.getKey();
-				    Object version = entry.getValue();
-				    sb.append("  ").append(get(version, "checksum")).append(" ");
-				    sb.append(get(version, "timestamp")).append(" ");
-				    sb.append(file).append("\n");
+				Object version = entry.getValue();
+				writeVersion(writer, entry.getKey(), get(version, "checksum"), get(version, "timestamp"));
 			}
+			writer.flush();
 
-			return sb.toString();
+			return true;
 		} catch (Exception e) {
 			ui.handleException(e);
+			return false;
+		}
+	}
+
+	private static void writeVersion(Writer writer, String file, Object checksum, Object timestamp) throws IOException {
+		writer.write("  " + checksum + " " + timestamp + " " + file + "\n");
+	}
+
+	/**
+	 * Determine whether to checksum the local files ourselves.
+	 * 
+	 * Unless the checksum index was turned off, and no parallel scan was
+	 * asked for, we scan the files ourselves instead of handing off to the
+	 * ImageJ updater's {@code Checksummer}.
+	 * 
+	 * @return whether to use {@link LocalScan}
+	 */
+	private boolean useLocalScan() {
+		return threads > 1 || !"false".equals(System.getProperty(CHECKSUM_INDEX_PROPERTY));
+	}
+
+	/**
+	 * Checksum the local files, handing each to a listener as soon as it is
+	 * checksummed.
+	 * 
+	 * @param listener
+	 *            the listener to receive the checksums
+	 * @throws Exception
+	 */
+	private void scanLocal(final LocalScan.Listener listener) throws Exception {
+		final Metrics.Phase phase = Metrics.get().start("local scan");
+		newLocalScan().run(ui, new LocalScan.Listener() {
+			@Override
+			public void checksummed(LocalScan.Entry entry) throws Exception {
+				phase.addBytes(entry.size).addFiles(1);
+				listener.checksummed(entry);
+			}
+		});
+		phase.end();
+	}
+
+	private LocalScan newLocalScan() {
+		File ijDir = new File(System.getProperty("ij.dir"));
+		ChecksumIndex index = "false".equals(System.getProperty(CHECKSUM_INDEX_PROPERTY)) ? null : new ChecksumIndex(ijDir);
+		return new LocalScan(this, ijDir, threads, index);
+	}
+
+	/**
+	 * Get the directories the {@code Checksummer} scans.
+	 * 
+	 * The table is read from the ImageJ updater if it is available locally;
+	 * otherwise, {@link LocalScan#DIRECTORIES} is returned.
+	 * 
+	 * @return the directories, alternating with the extensions to consider
+	 */
+	static String[][] getChecksummerDirectories() {
+		String[][] result = getStaticField(CHECKSUMMER_CLASS_NAME, "directories");
+		return result != null ? result : LocalScan.DIRECTORIES;
+	}
+
+	/**
+	 * Get the launchers the {@code Checksummer} considers.
+	 * 
+	 * The list is read from the ImageJ updater if it is available locally;
+	 * otherwise, {@link LocalScan#LAUNCHERS} is returned.
+	 * 
+	 * @return the launchers, relative to the ImageJ root directory
+	 */
+	static String[] getLaunchers() {
+		String[] result = getStaticField(UTIL_CLASS_NAME, "launchers");
+		return result != null ? result : LocalScan.LAUNCHERS;
+	}
+
+	/**
+	 * Read a static field of an ImageJ updater class, if it is available
+	 * without accessing the network.
+	 * 
+	 * @param className
+	 *            the name of the class
+	 * @param fieldName
+	 *            the name of the field
+	 * @return the value, or <i>null</i> if it could not be read
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T getStaticField(String className, String fieldName) {
+		try {
+			ClassLoader loader = remoteClassLoader != null ? remoteClassLoader : Adapter.class.getClassLoader();
+			Field field = Class.forName(className, false, loader).getDeclaredField(fieldName);
+			field.setAccessible(true);
+			return (T)field.get(null);
+		} catch (Throwable t) {
 			return null;
 		}
 	}
 
+	/**
+	 * Compute the checksum of a local file.
+	 * 
+	 * Plain files are hashed by {@link FileDigest}; <i>.jar</i> files are
+	 * handed off to the ImageJ updater so that the checksum is identical to
+	 * the one the {@code Checksummer} computes.
+	 * 
+	 * @param path
+	 *            the path relative to the ImageJ root directory
+	 * @param file
+	 *            the file
+	 * @return the checksum
+	 * @throws Exception
+	 */
+	String getDigest(String path, File file) throws Exception {
+		if (FileDigest.handles(path) && useNIO())
+			return FileDigest.digest(path, file);
+		return getUpdaterDigest(path, file);
+	}
+
+	/**
+	 * Let the ImageJ updater compute the checksum of a local file.
+	 * 
+	 * @param path
+	 *            the path relative to the ImageJ root directory
+	 * @param file
+	 *            the file
+	 * @return the checksum
+	 * @throws Exception
+	 */
+	String getUpdaterDigest(String path, File file) throws Exception {
+		return invokeStatic(UTIL_CLASS_NAME, "getDigest", path, file);
+	}
+
+	/**
+	 * Determine whether a file's checksum can be computed while downloading it.
+	 * 
+	 * This is the case once {@link FileDigest} (for plain files) or
+	 * {@link JarDigest} (for <i>.jar</i> files) has been found to compute the
+	 * same checksums as the updater (see {@link #probeDigests()}). Otherwise,
+	 * the files are read back after downloading them.
+	 * 
+	 * @param path
+	 *            the path relative to the ImageJ root directory
+	 * @return whether to verify the file while downloading it
+	 */
+	boolean canDigestWhileDownloading(String path) {
+		if ("false".equals(System.getProperty(NIO_PROPERTY)))
+			return false;
+		try {
+			probeDigests();
+		} catch (Exception e) {
+			return false;
+		}
+		return FileDigest.handles(path) ? nioMatchesUpdater : jarDigestMatchesUpdater;
+	}
+
+	/**
+	 * Determine whether to hash plain files via NIO.
+	 * 
+	 * @return whether {@link FileDigest} can be used
+	 * @throws Exception
+	 */
+	private boolean useNIO() throws Exception {
+		if ("false".equals(System.getProperty(NIO_PROPERTY)))
+			return false;
+		probeDigests();
+		return nioMatchesUpdater;
+	}
+
+	/**
+	 * Verify that our checksums agree with the updater's.
+	 * 
+	 * Since we cannot link to the ImageJ updater, we let it checksum a
+	 * generated plain file and a generated <i>.jar</i> file (see
+	 * {@link JarDigest#writeSample(File)}) once per session, and compare the
+	 * results to those of {@link FileDigest} and {@link JarDigest}.
+	 * 
+	 * @throws Exception
+	 *             if the updater could not be asked, e.g. because it is not
+	 *             available yet; the probe is repeated next time
+	 */
+	private void probeDigests() throws Exception {
+		if (nioMatchesUpdater != null)
+			return;
+		synchronized (this) {
+			if (nioMatchesUpdater != null)
+				return;
+			File dir = Files.createTempDirectory("fiji-updater-").toFile();
+			File plain = new File(dir, "probe.txt");
+			File jar = new File(dir, "probe.jar");
+			try {
+				OutputStream out = new FileOutputStream(plain);
+				try {
+					out.write("Fiji Updater\n".getBytes("ASCII"));
+				} finally {
+					out.close();
+				}
+				JarDigest.writeSample(jar);
+				jarDigestMatchesUpdater = getUpdaterDigest("jars/probe.jar", jar).equals(JarDigest.digest(jar));
+				nioMatchesUpdater = getUpdaterDigest("lib/probe.txt", plain).equals(FileDigest.digest("lib/probe.txt", plain));
+			} finally {
+				plain.delete();
+				jar.delete();
+				dir.delete();
+			}
+			if (!nioMatchesUpdater)
+				ui.showStatus("Checksums differ from the updater's; not using NIO");
+			if (!jarDigestMatchesUpdater)
+				ui.showStatus("Checksums of .jar files differ from the updater's; reading them back");
+		}
+	}
+
+	/**
+	 * Get the timestamp of a local file, as the ImageJ updater records it.
+	 * 
+	 * @param file
+	 *            the file
+	 * @return the timestamp
+	 * @throws Exception
+	 */
+	long getTimestamp(File file) throws Exception {
+		return this.<Long>invokeStatic(UTIL_CLASS_NAME, "getTimestamp", file);
+	}
+
 	/**
 	 * Get the current progress object.
 	 * 
@@ -351,10 +877,33 @@ public class Adapter {
 	 */
 	protected Object getProgress() throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
 		if (progress == null)
-			progress = progressClassName == SWING_PROGRESS_CLASS_NAME ? newInstance(progressClassName, (Frame)null) : newInstance(progressClassName);
+			progress = progressClassName == SWING_PROGRESS_CLASS_NAME ? newInstance(progressClassName, (Frame)null) : newStderrProgress();
 		return progress;
 	}
 
+	/**
+	 * Make a new progress object printing to stderr.
+	 * 
+	 * If asked for via the <i>fiji.updater.progress</i> system property, this
+	 * is a {@link ThrottledProgress}, otherwise the updater's own.
+	 * 
+	 * @return the progress object
+	 * @throws SecurityException
+	 * @throws NoSuchMethodException
+	 * @throws IllegalArgumentException
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 * @throws InvocationTargetException
+	 */
+	private Object newStderrProgress() throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+		if (ThrottledProgress.isEnabled()) {
+			Class<?> progressInterface = loadClass(PROGRESS_CLASS_NAME);
+			if (progressInterface != null)
+				return ThrottledProgress.create(progressInterface, System.err);
+		}
+		return newInstance(STDERR_PROGRESS_CLASS_NAME);
+	}
+
 	/**
 	 * Instantiate a new class.
 	 * 
@@ -378,13 +927,26 @@ public class Adapter {
 	 * @throws InvocationTargetException
 	 */
 	@SuppressWarnings("unchecked")
-	private<T> T newInstance(String className, Object... parameters) throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+	<T> T newInstance(String className, Object... parameters) throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
 		Class<?> clazz = loadClass(className);
-		for (Constructor<?> constructor : clazz.getConstructors()) {
-			if (doParametersMatch(constructor.getParameterTypes(), parameters))
-				return (T)constructor.newInstance(parameters);
+		Signature signature = new Signature(clazz, null, false, parameters);
+		MethodHandle handle = handles.get(signature);
+		if (handle == null) {
+			for (Constructor<?> constructor : clazz.getConstructors()) {
+				if (doParametersMatch(constructor.getParameterTypes(), parameters)) {
+					checkNullPrimitives(constructor.getParameterTypes(), parameters);
+					handle = cache(signature, MethodHandles.publicLookup().unreflectConstructor(constructor));
+					break;
+				}
+			}
+			if (handle == null)
+				throw new NoSuchMethodException("No matching constructor found");
+		}
+		try {
+			return (T)handle.invokeExact(parameters);
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
 		}
-		throw new NoSuchMethodException("No matching constructor found");
 	}
 
 	/**
@@ -409,12 +971,16 @@ public class Adapter {
 	 * @throws InvocationTargetException
 	 */
 	@SuppressWarnings("unchecked")
-	private static<T> T invoke(Object object, String methodName, Object... parameters) throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		for (Method method : object.getClass().getMethods()) {
-			if (method.getName().equals(methodName) && doParametersMatch(method.getParameterTypes(), parameters))
-				return (T)method.invoke(object, parameters);
+	static<T> T invoke(Object object, String methodName, Object... parameters) throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		Signature signature = new Signature(object.getClass(), methodName, true, parameters);
+		MethodHandle handle = handles.get(signature);
+		if (handle == null)
+			handle = findMethod(signature, parameters);
+		try {
+			return (T)handle.invokeExact(object, parameters);
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
 		}
-		throw new NoSuchMethodException("No matching method found");
 	}
 
 	/**
@@ -439,14 +1005,69 @@ public class Adapter {
 	 */
 	@SuppressWarnings("unchecked")
 	private<T> T invokeStatic(String className, String methodName, Object... parameters) throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		Class<?> clazz = loadClass(className);
-		for (Method method : clazz.getMethods()) {
-			if (method.getName().equals(methodName) && doParametersMatch(method.getParameterTypes(), parameters))
-				return (T)method.invoke(null, parameters);
+		Signature signature = new Signature(loadClass(className), methodName, false, parameters);
+		MethodHandle handle = handles.get(signature);
+		if (handle == null)
+			handle = findMethod(signature, parameters);
+		try {
+			return (T)handle.invokeExact(parameters);
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+	}
+
+	/**
+	 * Resolve a method for a call site that is not yet cached.
+	 * 
+	 * The method is looked up just like {@link Method#invoke(Object, Object...)}
+	 * would have to: by name and by {@link #doParametersMatch(Class[], Object[])}.
+	 * 
+	 * @param signature
+	 *            the call site
+	 * @param parameters
+	 *            the parameters of the call
+	 * @return the cached method handle
+	 * @throws NoSuchMethodException
+	 * @throws IllegalAccessException
+	 */
+	private static MethodHandle findMethod(Signature signature, Object[] parameters) throws NoSuchMethodException, IllegalAccessException {
+		for (Method method : signature.clazz.getMethods()) {
+			if (method.getName().equals(signature.name) && doParametersMatch(method.getParameterTypes(), parameters)) {
+				checkNullPrimitives(method.getParameterTypes(), parameters);
+				MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+				if (signature.hasReceiver && Modifier.isStatic(method.getModifiers()))
+					handle = MethodHandles.dropArguments(handle, 0, Object.class);
+				return cache(signature, handle);
+			}
 		}
 		throw new NoSuchMethodException("No matching method found");
 	}
 
+	/**
+	 * Adapt a method handle to a uniform calling convention and cache it.
+	 * 
+	 * All handles are converted to take an optional receiver and an
+	 * {@code Object[]} of parameters, returning an {@link Object}. The
+	 * conversion (un)boxes primitives as needed; since
+	 * {@link #doParametersMatch(Class[], Object[])} only accepts the exact
+	 * wrapper types for {@code long}, {@code int} and {@code boolean}, the
+	 * same calls are allowed as with {@link Method#invoke(Object, Object...)}.
+	 * 
+	 * @param signature
+	 *            the call site
+	 * @param handle
+	 *            the unreflected method or constructor
+	 * @return the adapted method handle
+	 */
+	private static MethodHandle cache(Signature signature, MethodHandle handle) {
+		handle = handle.asFixedArity();
+		int count = handle.type().parameterCount() - (signature.hasReceiver ? 1 : 0);
+		handle = handle.asType(handle.type().generic().changeReturnType(Object.class));
+		handle = handle.asSpreader(Object[].class, count);
+		handles.put(signature, handle);
+		return handle;
+	}
+
 	/**
 	 * Access a field of a given object.
 	 * 
@@ -470,11 +1091,42 @@ public class Adapter {
 	 * @throws IllegalAccessException
 	 */
 	@SuppressWarnings("unchecked")
-	private static<T> T get(Object object, String fieldName) throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
+	static<T> T get(Object object, String fieldName) throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
 		Field field = object.getClass().getField(fieldName);
 		return (T) field.get(object);
 	}
 
+	/**
+	 * Get the URLs of the update sites of a {@code FilesCollection}.
+	 *
+	 * @param files
+	 *            the {@code FilesCollection}
+	 * @return the update sites mapped to their URLs
+	 * @throws Exception
+	 */
+	static Map<Object, String> getUpdateSiteURLs(Object files) throws Exception {
+		Map<Object, String> result = new LinkedHashMap<Object, String>();
+		for (Object name : Adapter.<Iterable<Object>>invoke(files, "getUpdateSiteNames")) {
+			Object site = invoke(files, "getUpdateSite", name);
+			String url = get(site, "url");
+			if (url != null)
+				result.put(site, url);
+		}
+		return result;
+	}
+
+	/**
+	 * Set the URLs of update sites.
+	 *
+	 * @param urls
+	 *            the update sites mapped to their new URLs
+	 * @throws Exception
+	 */
+	static void setUpdateSiteURLs(Map<Object, String> urls) throws Exception {
+		for (Map.Entry<Object, String> entry : urls.entrySet())
+			set(entry.getKey(), "url", entry.getValue());
+	}
+
 	/**
 	 * Set the value of a field of a given object.
 	 * 
@@ -498,8 +1150,7 @@ public class Adapter {
 	 * @throws IllegalArgumentException
 	 * @throws IllegalAccessException
 	 */
-	@SuppressWarnings("unused")
-	private static void set(Object object, String fieldName, Object value) throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
+	static void set(Object object, String fieldName, Object value) throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
 		Field field = object.getClass().getField(fieldName);
 		field.set(object, value);
 	}
@@ -515,7 +1166,7 @@ public class Adapter {
 	 *            the parameters
 	 * @return whether the parameters match the types
 	 */
-	private static boolean doParametersMatch(Class<?>[] types, Object[] parameters) {
+	static boolean doParametersMatch(Class<?>[] types, Object[] parameters) {
 		if (types.length != parameters.length)
 			return false;
 		for (int i = 0; i < types.length; i++)
@@ -537,6 +1188,49 @@ public class Adapter {
 		return true;
 	}
 
+	/**
+	 * Reject <i>null</i> parameters for primitive parameter types.
+	 * 
+	 * {@link #doParametersMatch(Class[], Object[])} lets <i>null</i> match any
+	 * type. {@link Method#invoke(Object, Object...)} used to reject such a
+	 * call with an {@link IllegalArgumentException}, whereas a method handle
+	 * would fail with a {@link NullPointerException} while unboxing. To keep
+	 * the callers' error handling working, we throw the former before the
+	 * call site is cached; call sites with such parameters are therefore
+	 * never cached.
+	 * 
+	 * @param types
+	 *            the parameter types
+	 * @param parameters
+	 *            the parameters
+	 * @throws IllegalArgumentException
+	 *             if a primitive parameter is <i>null</i>
+	 */
+	private static void checkNullPrimitives(Class<?>[] types, Object[] parameters) {
+		for (int i = 0; i < types.length; i++)
+			if (parameters[i] == null && types[i].isPrimitive())
+				throw new IllegalArgumentException("null passed for parameter " + i + " of type " + types[i]);
+	}
+
+	/**
+	 * Replace the class loader of the remote ImageJ updater.
+	 * 
+	 * The cached method handles refer to their classes strongly. Therefore,
+	 * all call sites referring to classes of the previous class loader are
+	 * forgotten, so that it can be garbage collected.
+	 * 
+	 * @param loader
+	 *            the new class loader
+	 */
+	private static synchronized void setRemoteClassLoader(ClassLoader loader) {
+		ClassLoader previous = remoteClassLoader;
+		remoteClassLoader = loader;
+		if (previous != null)
+			for (Signature signature : handles.keySet())
+				if (signature.isLoadedBy(previous))
+					handles.remove(signature);
+	}
+
 	/**
 	 * Load an ImageJ updater class, possibly from the ImageJ update site.
 	 * 
@@ -565,14 +1259,10 @@ public class Adapter {
 			if (remoteClassLoader == null) {
 				ui.showStatus("Loading the remote ImageJ updater");
 				// fall back to instantiating a URLClassLoader
-				final URL[] urls = new URL[JARS.length];
-				for (int i = 0; i < urls.length; i++) try {
-					urls[i] = new URL(JARS_PREFIX + JARS[i] + VERSIONS[i] + ".jar-" + TIMESTAMPS[i]);
-				} catch (MalformedURLException e) {
-					ui.error("Invalid Updater URL: " + e.getMessage());
+				final URL[] urls = getRemoteURLs();
+				if (urls == null)
 					return null;
-				}
-				remoteClassLoader = new URLClassLoader(urls, String.class.getClassLoader());
+				setRemoteClassLoader(new URLClassLoader(urls, String.class.getClassLoader()));
 				// now we need to make sure that ij.dir is set properly because
 				// FileUtils.getBaseDirectory() will be quite lost
 				ensureIJDirIsSet();
@@ -587,6 +1277,50 @@ public class Adapter {
 		return result;
 	}
 
+	/**
+	 * Get the class path of the remote ImageJ updater.
+	 * 
+	 * The <i>.jar</i> files are taken from the persistent cache if possible.
+	 * Otherwise, they are downloaded concurrently into the cache and verified.
+	 * If that fails, we fall back to letting the URLClassLoader access the
+	 * update site directly. If a {@link Mirror} is configured, the files are
+	 * taken from there instead of the ImageJ update site.
+	 * 
+	 * @return the class path, or <i>null</i> if the URLs are invalid
+	 */
+	private URL[] getRemoteURLs() {
+		RemoteJars remote = new RemoteJars(Mirror.rewrite(JARS_PREFIX), RemoteJars.getCacheDirectory());
+		final URL[] urls = new URL[JARS.length];
+		try {
+			File[] files = remote.getCached();
+			if (files == null)
+				files = remote.download();
+			remote.evict();
+			for (int i = 0; i < urls.length; i++)
+				urls[i] = files[i].toURI().toURL();
+			return urls;
+		} catch (IOException e) {
+			ui.showStatus("Could not download the ImageJ updater (" + e.getMessage() + "); accessing it remotely");
+		}
+		for (int i = 0; i < urls.length; i++) try {
+			urls[i] = new URL(remote.getURL(i));
+		} catch (MalformedURLException e) {
+			ui.error("Invalid Updater URL: " + e.getMessage());
+			return null;
+		}
+		return urls;
+	}
+
+	/**
+	 * Determine whether the remote ImageJ updater is available in the
+	 * persistent cache, i.e. whether it can be run without network access.
+	 * 
+	 * @return whether all <i>.jar</i> files are cached and valid
+	 */
+	public static boolean isRemoteUpdaterCached() {
+		return new RemoteJars(Mirror.rewrite(JARS_PREFIX), RemoteJars.getCacheDirectory()).getCached() != null;
+	}
+
 	/**
 	 * Make sure that the property <i>ij.dir</i> is set.
 	 * 
@@ -626,4 +1360,62 @@ public class Adapter {
 			throw new RuntimeException("Could not infer ImageJ root directory; please set the ij.dir property accordingly!");
 		System.setProperty("ij.dir", ijDir);
 	}
+
+	/**
+	 * A call site of the reflective helpers.
+	 * 
+	 * Call sites are identified by the class, the method name (or
+	 * <i>null</i> for constructors), whether a receiver is passed and the
+	 * classes of the actual parameters. As <i>null</i> parameters match any
+	 * parameter type, they are recorded as <i>null</i> classes.
+	 */
+	private final static class Signature {
+		private final Class<?> clazz;
+		private final String name;
+		private final boolean hasReceiver;
+		private final Class<?>[] types;
+		private final int hashCode;
+
+		private Signature(Class<?> clazz, String name, boolean hasReceiver, Object[] parameters) {
+			this.clazz = clazz;
+			this.name = name;
+			this.hasReceiver = hasReceiver;
+			types = new Class<?>[parameters.length];
+			for (int i = 0; i < types.length; i++)
+				types[i] = parameters[i] == null ? null : parameters[i].getClass();
+			hashCode = (31 * clazz.hashCode() + (name == null ? 0 : name.hashCode())) * 31 + Arrays.hashCode(types) + (hasReceiver ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Signature))
+				return false;
+			Signature signature = (Signature)other;
+			return clazz == signature.clazz && hasReceiver == signature.hasReceiver
+				&& (name == null ? signature.name == null : name.equals(signature.name))
+				&& Arrays.equals(types, signature.types);
+		}
+
+		/**
+		 * Determine whether this call site refers to classes of a given
+		 * class loader.
+		 * 
+		 * @param loader
+		 *            the class loader
+		 * @return whether the class or any parameter class was loaded by it
+		 */
+		private boolean isLoadedBy(ClassLoader loader) {
+			if (clazz.getClassLoader() == loader)
+				return true;
+			for (Class<?> type : types)
+				if (type != null && type.getClassLoader() == loader)
+					return true;
+			return false;
+		}
+	}
 }
@@ -0,0 +1,232 @@
+package fiji.updater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+/**
+ * The remote updater's <i>bootstrap.js</i>, cached and precompiled.
+ *
+ * When no updater is available locally, {@link Updater} falls back to
+ * evaluating a script from the ImageJ update site. Instead of fetching and
+ * interpreting it on every fallback, the script is kept in the
+ * {@link RemoteJars#getCacheDirectory() cache directory}, next to a
+ * <i>.properties</i> file recording its SHA-1 and the server's cache
+ * validators:
+ * <ul>
+ * <li>a cached copy whose SHA-1 does not match is discarded,</li>
+ * <li>a cached copy younger than {@link #MAX_AGE} is used as-is,</li>
+ * <li>an older one is revalidated with a conditional request, and</li>
+ * <li>when offline, the cached copy is used regardless of its age.</li>
+ * </ul>
+ *
+ * If the script engine supports {@link Compilable}, the script is compiled
+ * once per session and the compiled form is reused.
+ */
+class BootstrapScript {
+	final static String FILE_NAME = "bootstrap.js";
+	final static long MAX_AGE = 24l * 60 * 60 * 1000;
+
+	private static ScriptEngine engine;
+	private static CompiledScript compiled;
+	private static String compiledChecksum;
+
+	private final URL url;
+	private final File file, info;
+
+	/**
+	 * Construct a new cached script.
+	 *
+	 * @param url
+	 *            the URL of the script
+	 * @param cacheDir
+	 *            the cache directory
+	 * @throws IOException
+	 */
+	BootstrapScript(String url, File cacheDir) throws IOException {
+		this.url = new URL(url);
+		file = new File(cacheDir, FILE_NAME);
+		info = new File(cacheDir, FILE_NAME + ".properties");
+	}
+
+	/**
+	 * Get the script, from the cache if possible.
+	 *
+	 * @return the script
+	 * @throws IOException
+	 */
+	String getSource() throws IOException {
+		Properties properties = readInfo();
+		byte[] cached = readCached(properties);
+		long now = System.currentTimeMillis();
+		if (cached != null) {
+			long fetched = Long.parseLong(properties.getProperty("fetched", "0"));
+			if (fetched <= now && now - fetched < MAX_AGE)
+				return new String(cached, "UTF-8");
+		}
+
+		byte[] bytes;
+		URLConnection connection;
+		try {
+			connection = Validators.open(url);
+			if (cached != null)
+				new Validators(properties.getProperty("etag"), Long.parseLong(properties.getProperty("lastModified", "0"))).apply(connection);
+			if (cached != null && connection instanceof HttpURLConnection
+					&& ((HttpURLConnection)connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				properties.setProperty("fetched", String.valueOf(now));
+				writeInfo(properties);
+				return new String(cached, "UTF-8");
+			}
+			bytes = read(connection.getInputStream());
+		} catch (IOException e) {
+			if (cached == null)
+				throw e;
+			System.err.println("Could not revalidate " + url + " (" + e.getMessage() + "); using the cached copy");
+			return new String(cached, "UTF-8");
+		}
+
+		Validators validators = Validators.of(connection);
+		properties = new Properties();
+		properties.setProperty("url", url.toString());
+		properties.setProperty("sha1", FileDigest.toHex(FileDigest.newDigest(null).digest(bytes)));
+		properties.setProperty("fetched", String.valueOf(now));
+		if (validators.etag != null)
+			properties.setProperty("etag", validators.etag);
+		properties.setProperty("lastModified", String.valueOf(validators.lastModified));
+		try {
+			write(bytes);
+			writeInfo(properties);
+		} catch (IOException e) {
+			// the cache is best effort
+			info.delete();
+		}
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Evaluate a script, compiling it if the engine supports it.
+	 *
+	 * The engine and the compiled script are kept for the rest of the
+	 * session, and reused as long as the script does not change. Every
+	 * evaluation gets fresh bindings, so that it does not see the variables
+	 * left behind by a previous one.
+	 *
+	 * @param source
+	 *            the script, as returned by {@link #getSource()}
+	 * @throws IOException
+	 * @throws ScriptException
+	 */
+	static void eval(String source) throws IOException, ScriptException {
+		String checksum = FileDigest.toHex(FileDigest.newDigest(null).digest(source.getBytes("UTF-8")));
+		synchronized (BootstrapScript.class) {
+			if (engine == null) {
+				engine = new ScriptEngineManager().getEngineByName("ECMAScript");
+				if (engine == null)
+					throw new ScriptException("No JavaScript engine available");
+			}
+			Bindings bindings = engine.createBindings();
+			engine.eval("importPackage(Packages.java.lang);", bindings);
+			if (engine instanceof Compilable) {
+				if (compiled == null || !checksum.equals(compiledChecksum)) {
+					compiled = ((Compilable)engine).compile(source);
+					compiledChecksum = checksum;
+				}
+				compiled.eval(bindings);
+			}
+			else
+				engine.eval(source, bindings);
+		}
+	}
+
+	private byte[] readCached(Properties properties) {
+		if (properties == null || !url.toString().equals(properties.getProperty("url")) || !file.isFile())
+			return null;
+		try {
+			byte[] bytes = read(new FileInputStream(file));
+			if (FileDigest.toHex(FileDigest.newDigest(null).digest(bytes)).equals(properties.getProperty("sha1")))
+				return bytes;
+		} catch (IOException e) {
+			// fall through
+		}
+		file.delete();
+		info.delete();
+		return null;
+	}
+
+	private Properties readInfo() {
+		if (!info.isFile())
+			return null;
+		try {
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(info);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+			return properties;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void writeInfo(Properties properties) throws IOException {
+		OutputStream out = new FileOutputStream(info);
+		try {
+			properties.store(out, "Fiji Updater: cached " + FILE_NAME);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not make directory " + dir);
+		File tmp = File.createTempFile(file.getName() + "-", ".tmp", dir);
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[16384];
+			for (;;) {
+				int count = in.read(buffer);
+				if (count < 0)
+					break;
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
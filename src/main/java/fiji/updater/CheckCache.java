@@ -0,0 +1,216 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Caches the result of the up-to-date check.
+ *
+ * The up-to-date check contacts every update site. When it is repeated
+ * shortly after a previous check, that is wasted effort: we remember the
+ * result in the ImageJ root directory and reuse it for a configurable time
+ * (the <i>fiji.updater.checkTTL</i> system property, in seconds; 0 turns the
+ * cache off).
+ *
+ * When caching a result, we ask every update site for the <i>ETag</i> and
+ * <i>Last-Modified</i> headers of its <i>db.xml.gz</i> and store them with the
+ * result. Once the configured time has passed, we revalidate the result by
+ * sending them back in a conditional request for every update site's
+ * <i>db.xml.gz</i>. If none of them changed, the result is still valid and
+ * costs only one small round-trip per site. If a site's <i>db.xml.gz</i> was
+ * modified after the check started, the result is not cached, as the check
+ * might have seen the previous version. To bound the effect of servers
+ * misreporting their validators, a result is never reused for longer than
+ * {@link #MAX_AGE}, however often it is revalidated.
+ *
+ * Only the result that there are no updates is cached: any other result is
+ * subject to the up-to-date check's other rules, such as a postponed
+ * reminder or a turned-off check, that the cache would bypass. Both of those
+ * merely suppress the notification, which is all a cached "up to date"
+ * does, too.
+ *
+ * The result is invalidated whenever the local <i>db.xml.gz</i> changes,
+ * i.e. after every update.
+ */
+class CheckCache {
+	final static String FILE_NAME = "db.check";
+	final static String TTL_PROPERTY = "fiji.updater.checkTTL";
+	private final static long DEFAULT_TTL = 60 * 60;
+	final static long MAX_AGE = 24l * 60 * 60 * 1000;
+
+	private final File ijDir, file;
+	private final long ttl, created;
+
+	/**
+	 * Construct a cache for a given ImageJ root directory.
+	 *
+	 * The cache is meant to be constructed before the up-to-date check runs:
+	 * the time of construction is taken as the time the check started.
+	 *
+	 * @param ijDir
+	 *            the ImageJ root directory
+	 */
+	CheckCache(File ijDir) {
+		this.ijDir = ijDir;
+		file = new File(ijDir, FILE_NAME);
+		ttl = 1000 * Long.getLong(TTL_PROPERTY, DEFAULT_TTL);
+		created = System.currentTimeMillis();
+	}
+
+	/**
+	 * Only the result that there are no updates can be cached.
+	 *
+	 * @param result
+	 *            the result of the up-to-date check
+	 * @return whether to cache it
+	 */
+	private static boolean isCacheable(String result) {
+		return "UP_TO_DATE".equals(result);
+	}
+
+	/**
+	 * Get the cached result.
+	 *
+	 * @return the result of the previous up-to-date check if it is still
+	 *         valid, <i>null</i> otherwise
+	 */
+	String get() {
+		if (ttl <= 0 || !file.exists())
+			return null;
+		try {
+			Properties properties = read();
+			String result = properties.getProperty("result");
+			if (!isCacheable(result) || !String.valueOf(getDbTimestamp()).equals(properties.getProperty("db")))
+				return null;
+			long now = System.currentTimeMillis();
+			long checked = Long.parseLong(properties.getProperty("checked"));
+			if (checked > now || now - checked >= MAX_AGE)
+				return null;
+			long revalidated = Long.parseLong(properties.getProperty("revalidated", String.valueOf(checked)));
+			if (revalidated <= now && now - revalidated < ttl)
+				return result;
+			List<String> sites = getUpdateSites();
+			for (int i = 0; i < sites.size(); i++) {
+				String url = sites.get(i);
+				if (!url.equals(properties.getProperty("site." + i + ".url")))
+					return null;
+				String etag = properties.getProperty("site." + i + ".etag");
+				long lastModified = Long.parseLong(properties.getProperty("site." + i + ".lastModified", "0"));
+				if (!new Validators(etag, lastModified).isUnmodified(getDbXmlGz(url)))
+					return null;
+			}
+			properties.setProperty("revalidated", String.valueOf(now));
+			write(properties);
+			return result;
+		} catch (Exception e) {
+			// Treat unreadable caches and network problems as a cache miss
+			return null;
+		}
+	}
+
+	/**
+	 * Record the result of an up-to-date check.
+	 *
+	 * To be able to revalidate the result, this asks every update site for the
+	 * validators of its <i>db.xml.gz</i>.
+	 *
+	 * @param result
+	 *            the result of the up-to-date check
+	 */
+	void put(String result) {
+		if (ttl <= 0)
+			return;
+		if (!isCacheable(result)) {
+			file.delete();
+			return;
+		}
+		try {
+			Properties properties = new Properties();
+			properties.setProperty("result", result);
+			properties.setProperty("checked", String.valueOf(System.currentTimeMillis()));
+			properties.setProperty("db", String.valueOf(getDbTimestamp()));
+			List<String> sites = getUpdateSites();
+			for (int i = 0; i < sites.size(); i++) {
+				String url = sites.get(i);
+				Validators validators = Validators.fetch(getDbXmlGz(url));
+				// modified since the check started: the check might have seen an older version
+				if (validators.lastModified / 1000 >= created / 1000) {
+					file.delete();
+					return;
+				}
+				properties.setProperty("site." + i + ".url", url);
+				if (validators.etag != null)
+					properties.setProperty("site." + i + ".etag", validators.etag);
+				properties.setProperty("site." + i + ".lastModified", String.valueOf(validators.lastModified));
+			}
+			write(properties);
+		} catch (Exception e) {
+			file.delete();
+		}
+	}
+
+	private long getDbTimestamp() {
+		return new File(ijDir, "db.xml.gz").lastModified();
+	}
+
+	/**
+	 * Get the update sites from the local <i>db.xml.gz</i>.
+	 *
+	 * @return the URLs
+	 * @throws Exception
+	 */
+	List<String> getUpdateSites() throws Exception {
+		final List<String> result = new ArrayList<String>();
+		InputStream in = new GZIPInputStream(new FileInputStream(new File(ijDir, "db.xml.gz")));
+		try {
+			SAXParserFactory.newInstance().newSAXParser().parse(in, new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes) {
+					if ("update-site".equals(qName) && attributes.getValue("url") != null)
+						result.add(attributes.getValue("url"));
+				}
+			});
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	private static URL getDbXmlGz(String url) throws IOException {
+		return new URL(url + (url.endsWith("/") ? "" : "/") + "db.xml.gz");
+	}
+
+	private Properties read() throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	private void write(Properties properties) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, "Fiji Updater: result of the last up-to-date check");
+		} finally {
+			out.close();
+		}
+	}
+}
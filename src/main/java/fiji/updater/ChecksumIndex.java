@@ -0,0 +1,119 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent index of the checksums of the local files.
+ *
+ * The index lives next to <i>db.xml.gz</i> in the ImageJ root directory and
+ * maps every path to the size, the modification time and the checksum of the
+ * file. Files whose size and modification time did not change since the last
+ * scan need not be hashed again.
+ *
+ * The index is an {@link IndexFile} with one tab-separated line per file; if
+ * it is corrupt, it is rebuilt from scratch.
+ */
+class ChecksumIndex {
+	final static String FILE_NAME = "db.checksums";
+	private final static String HEADER = "# Fiji Updater checksum index v1";
+
+	private final File file;
+	private final Map<String, LocalScan.Entry> entries = new ConcurrentHashMap<String, LocalScan.Entry>();
+	private boolean dirty;
+
+	/**
+	 * Read the index of a given ImageJ root directory.
+	 *
+	 * A missing or corrupt index yields an empty index.
+	 *
+	 * @param ijDir
+	 *            the ImageJ root directory
+	 */
+	ChecksumIndex(File ijDir) {
+		file = new File(ijDir, FILE_NAME);
+		if (file.exists()) try {
+			read();
+		} catch (IOException e) {
+			System.err.println("Rebuilding corrupt checksum index " + file + ": " + e.getMessage());
+			entries.clear();
+			dirty = true;
+		}
+	}
+
+	private void read() throws IOException {
+		for (String line : IndexFile.read(file, HEADER)) {
+			String[] fields = line.split("\t");
+			if (fields.length != 5)
+				throw new IOException("Invalid line: " + line);
+			try {
+				entries.put(fields[0], new LocalScan.Entry(fields[0], fields[3], Long.parseLong(fields[4]),
+					Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid line: " + line);
+			}
+		}
+	}
+
+	/**
+	 * Look up the checksum of a file.
+	 *
+	 * @param path
+	 *            the path relative to the ImageJ root directory
+	 * @param file
+	 *            the file
+	 * @return the cached entry, or <i>null</i> if the file changed or is not
+	 *         known yet
+	 */
+	LocalScan.Entry get(String path, File file) {
+		LocalScan.Entry entry = entries.get(path);
+		if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified())
+			return null;
+		return entry;
+	}
+
+	/**
+	 * Record the checksum of a file.
+	 *
+	 * @param entry
+	 *            the freshly computed entry
+	 */
+	void put(LocalScan.Entry entry) {
+		entries.put(entry.path, entry);
+		dirty = true;
+	}
+
+	/**
+	 * Forget all files that are not part of the given scan.
+	 *
+	 * @param paths
+	 *            the paths that were scanned
+	 */
+	void retainAll(Collection<String> paths) {
+		if (entries.keySet().retainAll(paths))
+			dirty = true;
+	}
+
+	/**
+	 * Write the index if it changed.
+	 *
+	 * See {@link IndexFile#write}.
+	 *
+	 * @throws IOException
+	 */
+	void save() throws IOException {
+		if (!dirty)
+			return;
+		List<String> lines = new ArrayList<String>();
+		for (LocalScan.Entry entry : entries.values())
+			lines.add(entry.path + "\t" + entry.size + "\t" + entry.lastModified
+				+ "\t" + entry.checksum + "\t" + entry.timestamp);
+		IndexFile.write(file, HEADER, lines);
+		dirty = false;
+	}
+}
@@ -0,0 +1,249 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Generates a class-data-sharing archive for the command-line updater.
+ *
+ * Headless updates spend most of their time starting the JVM and loading
+ * the classes of {@link Main}, {@link Adapter} and the ImageJ updater. A
+ * dynamic class-data-sharing archive (Java 13 or later) lets the JVM map
+ * those classes from a pre-parsed archive instead.
+ *
+ * This class runs a training command (by default <i>list-current</i>) in a
+ * child JVM with <i>-XX:ArchiveClassesAtExit</i>, then writes an argument
+ * file next to the archive, and a launcher that runs the command-line
+ * updater with it, using the same JVM and class path as the training run
+ * (an archive only applies to the class path it was made for):
+ *
+ * <pre>
+ * $IJ_DIR/updater.jsa.sh update
+ * </pre>
+ *
+ * On Windows, the launcher is <i>updater.jsa.bat</i>. The options use
+ * <i>-Xshare:auto</i>, so an archive that does not match the current JVM or
+ * class path is ignored rather than causing an error. Note that the JVM
+ * only archives classes from <i>.jar</i> files on the class path, not from
+ * directories. Finally, the training command is timed with and without the
+ * archive and the startup gain is reported.
+ */
+class ClassDataSharing {
+	/**
+	 * The system property specifying the archive's path; defaults to
+	 * <i>updater.jsa</i> in the ImageJ root directory.
+	 */
+	final static String ARCHIVE_PROPERTY = "fiji.updater.cdsArchive";
+
+	private final static int RUNS = 3;
+
+	/**
+	 * Get the path of the archive.
+	 *
+	 * @return the archive
+	 */
+	static File getArchive() {
+		String path = System.getProperty(ARCHIVE_PROPERTY);
+		if (path != null)
+			return new File(path);
+		String ijDir = System.getProperty("ij.dir");
+		return new File(ijDir == null ? "." : ijDir, "updater.jsa");
+	}
+
+	/**
+	 * Get the argument file for the {@code java} launcher.
+	 *
+	 * @param archive
+	 *            the archive
+	 * @return the file containing the JVM options to use the archive
+	 */
+	static File getOptionsFile(File archive) {
+		return new File(archive.getPath() + ".options");
+	}
+
+	/**
+	 * Get the launcher that runs the command-line updater with the archive.
+	 *
+	 * @param archive
+	 *            the archive
+	 * @return the shell script, or the batch file on Windows
+	 */
+	static File getLauncher(File archive) {
+		return new File(archive.getPath() + (isWindows() ? ".bat" : ".sh"));
+	}
+
+	private static boolean isWindows() {
+		return System.getProperty("os.name").startsWith("Windows");
+	}
+
+	/**
+	 * Determine whether this JVM was started with a class-data-sharing
+	 * archive of its own.
+	 *
+	 * @return whether <i>-XX:SharedArchiveFile</i> was passed
+	 */
+	static boolean isInUse() {
+		try {
+			for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments())
+				if (argument.startsWith("-XX:SharedArchiveFile="))
+					return true;
+		} catch (Throwable t) {
+			// no management support
+		}
+		return false;
+	}
+
+	/**
+	 * Generate the archive and measure the startup gain.
+	 *
+	 * @param archive
+	 *            the archive to write
+	 * @param command
+	 *            the training command for {@link Main}
+	 * @param ui
+	 *            where to report the result
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	static void generate(File archive, List<String> command, UI ui) throws IOException, InterruptedException {
+		archive = archive.getAbsoluteFile();
+		File options = getOptionsFile(archive);
+		File launcher = getLauncher(archive);
+		launcher.delete();
+		options.delete();
+		archive.delete();
+		run(command, "-XX:ArchiveClassesAtExit=" + archive.getPath());
+		if (!archive.exists())
+			throw new IOException("The JVM did not write " + archive + " (Java 13 or later is required)");
+
+		String useArchive = "-XX:SharedArchiveFile=" + archive.getPath();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(options), "UTF-8");
+		try {
+			writer.write("-Xshare:auto\n\"" + useArchive.replace("\\", "\\\\") + "\"\n");
+		} finally {
+			writer.close();
+		}
+		writeLauncher(launcher, options);
+
+		long without = Long.MAX_VALUE, with = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; i++) {
+			without = Math.min(without, run(command, "-Xshare:auto"));
+			with = Math.min(with, run(command, "-Xshare:auto", useArchive));
+		}
+		ui.showStatus("Wrote " + archive + " (" + archive.length() / 1024 + " kB), " + options + " and " + launcher);
+		ui.showStatus(String.format("Best of %d runs of '%s': %d ms without, %d ms with the archive (%.0f%% faster)",
+			RUNS, join(command), without, with, 100.0 * (without - with) / without));
+	}
+
+	/**
+	 * Write a launcher running {@link Main} with the archive.
+	 *
+	 * @param launcher
+	 *            the shell script or batch file to write
+	 * @param options
+	 *            the argument file using the archive
+	 * @throws IOException
+	 */
+	private static void writeLauncher(File launcher, File options) throws IOException {
+		List<String> arguments = getArguments(Arrays.asList("@" + options.getPath()));
+		StringBuilder builder = new StringBuilder();
+		if (isWindows()) {
+			builder.append("@rem Generated by ").append(ClassDataSharing.class.getName()).append("\r\n@");
+			for (String argument : arguments)
+				builder.append('"').append(argument.replace("%", "%%")).append("\" ");
+			builder.append("%*\r\n");
+		}
+		else {
+			builder.append("#!/bin/sh\n# Generated by ").append(ClassDataSharing.class.getName()).append("\nexec");
+			for (String argument : arguments)
+				builder.append(" '").append(argument.replace("'", "'\\''")).append('\'');
+			builder.append(" \"$@\"\n");
+		}
+		Writer writer = new OutputStreamWriter(new FileOutputStream(launcher), "UTF-8");
+		try {
+			writer.write(builder.toString());
+		} finally {
+			writer.close();
+		}
+		launcher.setExecutable(true, false);
+	}
+
+	/**
+	 * Run {@link Main} in a child JVM.
+	 *
+	 * @param command
+	 *            the arguments for {@link Main}
+	 * @param jvmOptions
+	 *            additional JVM options
+	 * @return the wall time in milliseconds
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static long run(List<String> command, String... jvmOptions) throws IOException, InterruptedException {
+		List<String> arguments = getArguments(Arrays.asList(jvmOptions));
+		arguments.addAll(command);
+
+		ProcessBuilder builder = new ProcessBuilder(arguments);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+		long start = System.nanoTime();
+		int exitCode = builder.start().waitFor();
+		long millis = (System.nanoTime() - start) / 1000000;
+		if (exitCode != 0)
+			throw new IOException("Command failed with exit code " + exitCode + ": " + join(arguments));
+		return millis;
+	}
+
+	/**
+	 * Get the command line running {@link Main} in a JVM like this one.
+	 *
+	 * @param jvmOptions
+	 *            additional JVM options
+	 * @return the command line, without the arguments for {@link Main}
+	 */
+	private static List<String> getArguments(List<String> jvmOptions) {
+		List<String> arguments = new ArrayList<String>();
+		arguments.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		arguments.addAll(jvmOptions);
+		String ijDir = System.getProperty("ij.dir");
+		if (ijDir != null)
+			arguments.add("-Dij.dir=" + ijDir);
+		arguments.add("-Djava.awt.headless=true");
+		arguments.add("-cp");
+		arguments.add(System.getProperty("java.class.path"));
+		arguments.add(Main.class.getName());
+		return arguments;
+	}
+
+	private static String join(List<String> list) {
+		StringBuilder builder = new StringBuilder();
+		for (String item : list) {
+			if (builder.length() > 0)
+				builder.append(' ');
+			builder.append(item);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Generate the archive.
+	 *
+	 * Usage: <code>java -Dij.dir=&lt;dir&gt; -cp &lt;updater class path&gt;
+	 * fiji.updater.ClassDataSharing [&lt;training command&gt;...]</code>
+	 *
+	 * @param args
+	 *            the training command; defaults to <i>list-current</i>
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		List<String> command = args.length > 0 ? Arrays.asList(args) : Arrays.asList("list-current");
+		generate(getArchive(), command, new StderrUI());
+	}
+}
@@ -0,0 +1,266 @@
+package fiji.updater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Zip-entry level deltas between two versions of a <i>.jar</i> file.
+ *
+ * When a single class changes in a large <i>.jar</i> file, downloading the
+ * complete file again is wasteful. Instead, update sites can publish a delta
+ * next to the file: a zip file containing only the entries that were added
+ * or changed, plus a special entry {@value #REMOVED} listing the names of the
+ * entries that were removed, and a special entry {@value #ORDER} listing the
+ * names of all entries of the new version in their order, one per line.
+ *
+ * The rebuilt file has its entries in the same order as the new version; in
+ * particular, <i>META-INF/MANIFEST.MF</i> stays the first entry, where
+ * {@link java.util.jar.JarInputStream} expects it. For deltas without
+ * {@value #ORDER}, the manifest is moved to the front.
+ *
+ * The delta for updating from the version with checksum <i>c</i> to the file
+ * published as <i>jars/x.jar-t</i> is published as
+ * <i>jars/x.jar-t.delta-c</i>.
+ *
+ * Since the updater's checksums of <i>.jar</i> files only depend on the
+ * entries' names and contents, the rebuilt file can be verified against the
+ * expected checksum; if that fails, the caller falls back to downloading the
+ * complete file.
+ */
+class Delta {
+	final static String REMOVED = ".delta/removed";
+	final static String ORDER = ".delta/order";
+	private final static String MANIFEST = "META-INF/MANIFEST.MF";
+
+	/**
+	 * Get the URL of the delta from a given installed version.
+	 *
+	 * @param url
+	 *            the URL of the new version
+	 * @param checksum
+	 *            the checksum of the installed version
+	 * @return the URL of the delta
+	 */
+	static String getURL(String url, String checksum) {
+		return url + ".delta-" + checksum;
+	}
+
+	/**
+	 * Create a delta.
+	 *
+	 * @param oldJar
+	 *            the previous version
+	 * @param newJar
+	 *            the new version
+	 * @param delta
+	 *            the file to write the delta to
+	 * @throws IOException
+	 */
+	static void create(File oldJar, File newJar, File delta) throws IOException {
+		ZipFile oldZip = new ZipFile(oldJar);
+		ZipFile newZip = new ZipFile(newJar);
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(delta));
+		try {
+			Set<String> removed = new HashSet<String>();
+			List<String> order = new ArrayList<String>();
+			for (Enumeration<? extends ZipEntry> entries = oldZip.entries(); entries.hasMoreElements(); )
+				removed.add(entries.nextElement().getName());
+			for (Enumeration<? extends ZipEntry> entries = newZip.entries(); entries.hasMoreElements(); ) {
+				ZipEntry entry = entries.nextElement();
+				removed.remove(entry.getName());
+				order.add(entry.getName());
+				ZipEntry old = oldZip.getEntry(entry.getName());
+				if (old != null && old.getSize() == entry.getSize() && old.getCrc() == entry.getCrc()
+						&& sameContents(oldZip, old, newZip, entry))
+					continue;
+				copy(newZip, entry, out);
+			}
+			writeList(REMOVED, removed, out);
+			writeList(ORDER, order, out);
+		} finally {
+			out.close();
+			newZip.close();
+			oldZip.close();
+		}
+	}
+
+	/**
+	 * Rebuild a new version from the installed version and a delta.
+	 *
+	 * @param oldJar
+	 *            the installed version
+	 * @param delta
+	 *            the delta
+	 * @param result
+	 *            the file to write the new version to
+	 * @throws IOException
+	 */
+	static void apply(File oldJar, File delta, File result) throws IOException {
+		ZipFile oldZip = new ZipFile(oldJar);
+		ZipFile deltaZip = new ZipFile(delta);
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(result));
+		boolean success = false;
+		try {
+			List<String> removed = readList(deltaZip, REMOVED);
+			if (removed == null)
+				throw new IOException("Not a delta: " + delta);
+			List<String> order = readList(deltaZip, ORDER);
+			if (order == null)
+				order = guessOrder(oldZip, deltaZip, new HashSet<String>(removed));
+
+			for (String name : order) {
+				ZipEntry entry = deltaZip.getEntry(name);
+				if (entry != null)
+					copy(deltaZip, entry, out);
+				else if ((entry = oldZip.getEntry(name)) != null)
+					copy(oldZip, entry, out);
+				else
+					throw new IOException("Missing entry " + name + " in " + delta);
+			}
+			success = true;
+		} finally {
+			out.close();
+			deltaZip.close();
+			oldZip.close();
+			if (!success)
+				result.delete();
+		}
+	}
+
+	/**
+	 * Guess the order of the entries for deltas that do not record it.
+	 *
+	 * The installed version's remaining entries come first, in their order,
+	 * followed by the delta's entries; the manifest and its directory are
+	 * moved to the front.
+	 */
+	private static List<String> guessOrder(ZipFile oldZip, ZipFile deltaZip, Set<String> removed) {
+		List<String> result = new ArrayList<String>();
+		for (Enumeration<? extends ZipEntry> entries = oldZip.entries(); entries.hasMoreElements(); ) {
+			String name = entries.nextElement().getName();
+			if (!removed.contains(name) && deltaZip.getEntry(name) == null)
+				result.add(name);
+		}
+		for (Enumeration<? extends ZipEntry> entries = deltaZip.entries(); entries.hasMoreElements(); ) {
+			String name = entries.nextElement().getName();
+			if (!name.startsWith(".delta/"))
+				result.add(name);
+		}
+		for (String name : new String[] { MANIFEST, "META-INF/" })
+			if (result.remove(name))
+				result.add(0, name);
+		return result;
+	}
+
+	private static void writeList(String name, Collection<String> lines, ZipOutputStream out) throws IOException {
+		out.putNextEntry(new ZipEntry(name));
+		for (String line : lines)
+			out.write((line + "\n").getBytes("UTF-8"));
+		out.closeEntry();
+	}
+
+	private static List<String> readList(ZipFile zip, String name) throws IOException {
+		ZipEntry entry = zip.getEntry(name);
+		if (entry == null)
+			return null;
+		List<String> result = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(zip.getInputStream(entry), "UTF-8"));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine())
+				if (!line.equals(""))
+					result.add(line);
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	private static void copy(ZipFile zip, ZipEntry entry, ZipOutputStream out) throws IOException {
+		ZipEntry copy = new ZipEntry(entry.getName());
+		copy.setTime(entry.getTime());
+		if (entry.getExtra() != null)
+			copy.setExtra(entry.getExtra());
+		out.putNextEntry(copy);
+		InputStream in = zip.getInputStream(entry);
+		try {
+			copy(in, out);
+		} finally {
+			in.close();
+		}
+		out.closeEntry();
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[65536];
+		for (;;) {
+			int count = in.read(buffer);
+			if (count < 0)
+				break;
+			out.write(buffer, 0, count);
+		}
+	}
+
+	private static boolean sameContents(ZipFile zip1, ZipEntry entry1, ZipFile zip2, ZipEntry entry2) throws IOException {
+		InputStream in1 = zip1.getInputStream(entry1);
+		InputStream in2 = zip2.getInputStream(entry2);
+		try {
+			byte[] buffer1 = new byte[65536], buffer2 = new byte[65536];
+			for (;;) {
+				int count1 = readFully(in1, buffer1);
+				int count2 = readFully(in2, buffer2);
+				if (count1 != count2 || !Arrays.equals(buffer1, buffer2))
+					return false;
+				if (count1 < buffer1.length)
+					return true;
+			}
+		} finally {
+			in1.close();
+			in2.close();
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] buffer) throws IOException {
+		int offset = 0;
+		while (offset < buffer.length) {
+			int count = in.read(buffer, offset, buffer.length - offset);
+			if (count < 0)
+				break;
+			offset += count;
+		}
+		Arrays.fill(buffer, offset, buffer.length, (byte)0);
+		return offset;
+	}
+
+	/**
+	 * Create a delta, for update site maintainers.
+	 *
+	 * Usage: <code>java -cp Fiji_Updater.jar fiji.updater.Delta
+	 * &lt;old.jar&gt; &lt;new.jar&gt; &lt;delta&gt;</code>
+	 *
+	 * @param args
+	 *            the command-line arguments
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("Usage: fiji.updater.Delta <old.jar> <new.jar> <delta>");
+			System.exit(1);
+		}
+		create(new File(args[0]), new File(args[1]), new File(args[2]));
+	}
+}
@@ -0,0 +1,59 @@
+package fiji.updater;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * A channel that feeds everything written through it to a
+ * {@link MessageDigest}.
+ *
+ * This lets {@link Downloader} checksum a file while it is being written,
+ * instead of reading it back from disk afterwards.
+ */
+class DigestingChannel implements WritableByteChannel {
+	private final WritableByteChannel out;
+	private final MessageDigest digest;
+
+	/**
+	 * Construct a new digesting channel.
+	 *
+	 * @param out
+	 *            the channel to write to
+	 * @param digest
+	 *            the digest to update
+	 */
+	DigestingChannel(WritableByteChannel out, MessageDigest digest) {
+		this.out = out;
+		this.digest = digest;
+	}
+
+	@Override
+	public int write(ByteBuffer buffer) throws IOException {
+		ByteBuffer written = buffer.duplicate();
+		int count = out.write(buffer);
+		written.limit(written.position() + count);
+		digest.update(written);
+		return count;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return out.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Finish the digest.
+	 *
+	 * @return the checksum of everything written, as hex string
+	 */
+	String getChecksum() {
+		return FileDigest.toHex(digest.digest());
+	}
+}
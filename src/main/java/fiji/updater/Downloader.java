@@ -0,0 +1,351 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+/**
+ * Downloads single files.
+ *
+ * Files are downloaded to a <i>.part</i> file next to the destination first,
+ * which is renamed only after the download is complete.
+ *
+ * If a download is interrupted, the <i>.part</i> file is kept, together with
+ * a <i>.part.info</i> file recording the URL and the server's validators
+ * (<i>ETag</i> or <i>Last-Modified</i>). The next download of the same URL
+ * asks the server only for the missing bytes with a <i>Range</i> request; the
+ * <i>If-Range</i> header makes sure that the server sends the complete file
+ * instead if it changed in the meantime.
+ *
+ * Optionally, the file's size and checksum are verified while it streams
+ * in, through a {@link DigestingChannel}, so that the file need not be read
+ * back from disk to verify it. The checksum of a <i>.jar</i> file is computed
+ * entry by entry, by a {@link JarDigest}.
+ */
+class Downloader {
+	private final static int TIMEOUT = 30000;
+
+	/**
+	 * Receives the number of bytes downloaded so far.
+	 */
+	interface Listener {
+		void transferred(long bytes);
+	}
+
+	/**
+	 * What to verify while a download streams in.
+	 */
+	static class Verification {
+		private final String path, checksum;
+		private final long size;
+		private final boolean digest;
+		private String actual;
+
+		private Verification(String path, String checksum, long size, boolean digest) {
+			this.path = path;
+			this.checksum = checksum;
+			this.size = size;
+			this.digest = digest;
+		}
+
+		/**
+		 * Verify the updater's checksum of a file, and its size.
+		 *
+		 * @param path
+		 *            the path relative to the ImageJ root directory
+		 * @param checksum
+		 *            the expected checksum (see {@link FileDigest} and
+		 *            {@link JarDigest}), or <i>null</i> to only compute it
+		 * @param size
+		 *            the expected size, or -1 if unknown
+		 * @return the verification
+		 */
+		static Verification checksum(String path, String checksum, long size) {
+			return new Verification(path, checksum, size, true);
+		}
+
+		/**
+		 * Only compute the SHA-1 of the contents, for {@link #getChecksum()}.
+		 *
+		 * @return the verification
+		 */
+		static Verification sha1() {
+			return new Verification(null, null, -1, true);
+		}
+
+		/**
+		 * Only verify the size.
+		 *
+		 * @param size
+		 *            the expected size
+		 * @return the verification
+		 */
+		static Verification size(long size) {
+			return new Verification(null, null, size, false);
+		}
+
+		/**
+		 * Get the checksum computed while downloading.
+		 *
+		 * @return the checksum, or <i>null</i> if none was computed
+		 */
+		String getChecksum() {
+			return actual;
+		}
+	}
+
+	/**
+	 * Download a file, resuming a previously interrupted download if possible.
+	 *
+	 * @param url
+	 *            the URL to download
+	 * @param file
+	 *            the destination
+	 * @param listener
+	 *            the listener to report progress to, or <i>null</i>
+	 * @return the number of bytes downloaded
+	 * @throws IOException
+	 */
+	static long download(URL url, File file, Listener listener) throws IOException {
+		return download(url, file, listener, null);
+	}
+
+	/**
+	 * Download a file, verifying it while it streams in.
+	 *
+	 * A download that turns out to be larger than expected is cancelled right
+	 * away, as is one whose announced length does not match. A download with
+	 * the wrong checksum is discarded instead of being renamed into place.
+	 * In both cases, the partial download is removed, so that the next
+	 * attempt starts from scratch.
+	 *
+	 * @param url
+	 *            the URL to download
+	 * @param file
+	 *            the destination
+	 * @param listener
+	 *            the listener to report progress to, or <i>null</i>
+	 * @param verification
+	 *            what to verify, or <i>null</i>
+	 * @return the number of bytes downloaded
+	 * @throws IOException
+	 */
+	static long download(URL url, File file, Listener listener, Verification verification) throws IOException {
+		File part = getPartFile(file);
+		File info = getInfoFile(file);
+		File parent = part.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Could not make directory " + parent);
+		URLConnection connection = url.openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		long offset = 0;
+		if (connection instanceof HttpURLConnection && part.length() > 0) {
+			String validator = getValidator(info, url);
+			if (validator != null) {
+				offset = part.length();
+				connection.setRequestProperty("Range", "bytes=" + offset + "-");
+				connection.setRequestProperty("If-Range", validator);
+			}
+		}
+		if (offset > 0) {
+			if (((HttpURLConnection)connection).getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+				// the file changed, or the server does not support ranges
+				offset = 0;
+			else if (getRangeStart(connection) != offset) {
+				part.delete();
+				info.delete();
+				throw new IOException("Unexpected range from " + url + ": " + connection.getHeaderField("Content-Range"));
+			}
+		}
+		long expected = connection.getContentLengthLong();
+		if (expected >= 0)
+			expected += offset;
+		long size = verification == null ? -1 : verification.size;
+		if (size >= 0 && expected >= 0 && expected != size) {
+			part.delete();
+			info.delete();
+			throw new IOException("Size mismatch for " + url + ": expected " + size + ", server announced " + expected);
+		}
+		InputStream in = connection.getInputStream();
+		if (offset == 0)
+			writeInfo(info, url, connection);
+		long count = offset;
+		DigestingChannel digesting = null;
+		boolean cancelled = false;
+		try {
+			FileChannel channel = new FileOutputStream(part, offset > 0).getChannel();
+			try {
+				WritableByteChannel out = channel;
+				if (verification != null && verification.digest) {
+					MessageDigest digest = verification.path != null && !FileDigest.handles(verification.path) ?
+						new JarDigest() : FileDigest.newDigest(verification.path);
+					if (offset > 0)
+						FileDigest.update(digest, part);
+					out = digesting = new DigestingChannel(channel, digest);
+				}
+				ReadableByteChannel source = Channels.newChannel(in);
+				ByteBuffer buffer = ByteBuffer.allocate(65536);
+				for (;;) {
+					buffer.clear();
+					int length = source.read(buffer);
+					if (length < 0)
+						break;
+					count += length;
+					if (size >= 0 && count > size) {
+						cancelled = true;
+						throw new IOException("Size mismatch for " + url + ": more than the expected " + size + " bytes");
+					}
+					buffer.flip();
+					while (buffer.hasRemaining())
+						out.write(buffer);
+					if (listener != null)
+						listener.transferred(count);
+				}
+			} finally {
+				channel.close();
+			}
+		} finally {
+			in.close();
+			if (cancelled) {
+				part.delete();
+				info.delete();
+			}
+		}
+		if (expected >= 0 && count != expected)
+			throw new IOException("Short read from " + url + ": " + count + " instead of " + expected + " bytes");
+		if (size >= 0 && count < size)
+			// keep the partial download, to resume it
+			throw new IOException("Short read from " + url + ": " + count + " instead of " + size + " bytes");
+		if (digesting != null) {
+			verification.actual = digesting.getChecksum();
+			if (verification.checksum != null && !verification.checksum.equals(verification.actual)) {
+				part.delete();
+				info.delete();
+				throw new IOException("Checksum mismatch for " + url + ": expected " + verification.checksum + ", got " + verification.actual);
+			}
+		}
+		if (file.exists() && !file.delete())
+			throw new IOException("Could not overwrite " + file);
+		if (!part.renameTo(file))
+			throw new IOException("Could not rename " + part + " to " + file);
+		info.delete();
+		return count - offset;
+	}
+
+	/**
+	 * Get the temporary file a download is written to.
+	 *
+	 * @param file
+	 *            the destination
+	 * @return the partial file
+	 */
+	static File getPartFile(File file) {
+		return new File(file.getPath() + ".part");
+	}
+
+	/**
+	 * Get the file recording where a partial download came from.
+	 *
+	 * @param file
+	 *            the destination
+	 * @return the info file
+	 */
+	static File getInfoFile(File file) {
+		return new File(file.getPath() + ".part.info");
+	}
+
+	/**
+	 * Get the validator to resume a partial download with.
+	 *
+	 * @param info
+	 *            the info file
+	 * @param url
+	 *            the URL to download
+	 * @return the <i>ETag</i> or <i>Last-Modified</i> value, or <i>null</i>
+	 *         if the partial download cannot be resumed
+	 */
+	private static String getValidator(File info, URL url) {
+		if (!info.exists())
+			return null;
+		try {
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(info);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+			if (!url.toString().equals(properties.getProperty("url")))
+				return null;
+			String etag = properties.getProperty("etag");
+			// weak ETags must not be used with If-Range
+			if (etag != null && !etag.startsWith("W/"))
+				return etag;
+			return properties.getProperty("lastModified");
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Determine where the server resumed a download.
+	 *
+	 * @param connection
+	 *            the connection that received a partial response
+	 * @return the first byte sent, or -1 if unknown
+	 */
+	private static long getRangeStart(URLConnection connection) {
+		// Content-Range: bytes <first>-<last>/<length>
+		String range = connection.getHeaderField("Content-Range");
+		if (range == null || !range.startsWith("bytes "))
+			return -1;
+		int dash = range.indexOf('-');
+		if (dash < 0)
+			return -1;
+		try {
+			return Long.parseLong(range.substring(6, dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void writeInfo(File info, URL url, URLConnection connection) {
+		String etag = connection.getHeaderField("ETag");
+		String lastModified = connection.getHeaderField("Last-Modified");
+		if (etag == null && lastModified == null) {
+			// cannot resume safely
+			info.delete();
+			return;
+		}
+		Properties properties = new Properties();
+		properties.setProperty("url", url.toString());
+		if (etag != null)
+			properties.setProperty("etag", etag);
+		if (lastModified != null)
+			properties.setProperty("lastModified", lastModified);
+		try {
+			OutputStream out = new FileOutputStream(info);
+			try {
+				properties.store(out, "Fiji Updater: partial download");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			info.delete();
+		}
+	}
+}
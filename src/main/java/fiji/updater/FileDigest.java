@@ -0,0 +1,204 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Compute the updater's checksums of plain (non-<i>.jar</i>) files via NIO.
+ *
+ * The ImageJ updater hashes such files as the SHA-1 of the path (relative to
+ * the ImageJ root) followed by the contents, read through an ordinary
+ * {@link FileInputStream}. For the large native libraries in <i>lib/</i>, we
+ * read through a {@link FileChannel} instead, into a direct buffer that is
+ * reused by each thread, and memory-map files above a certain size.
+ *
+ * <i>.jar</i> files are hashed entry by entry by the updater, ignoring
+ * timestamps; see {@link JarDigest}.
+ */
+class FileDigest {
+	private final static int BUFFER_SIZE = 1 << 20;
+	private final static long MAP_THRESHOLD = 16 << 20;
+	private final static long MAP_CHUNK = 256 << 20;
+
+	private final static ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	/**
+	 * Determine whether a file can be hashed by this class.
+	 *
+	 * @param path
+	 *            the path relative to the ImageJ root directory
+	 * @return whether the updater hashes the file's plain contents
+	 */
+	static boolean handles(String path) {
+		return !path.endsWith(".jar");
+	}
+
+	/**
+	 * Compute the checksum of a file, using a {@link FileChannel}.
+	 *
+	 * @param path
+	 *            the path relative to the ImageJ root directory
+	 * @param file
+	 *            the file
+	 * @return the checksum
+	 * @throws IOException
+	 */
+	static String digest(String path, File file) throws IOException {
+		return digest(newDigest(path), file);
+	}
+
+	/**
+	 * Compute the plain SHA-1 of a file's contents, using a
+	 * {@link FileChannel}.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the checksum
+	 * @throws IOException
+	 */
+	static String digest(File file) throws IOException {
+		return digest(newDigest(null), file);
+	}
+
+	private static String digest(MessageDigest digest, File file) throws IOException {
+		update(digest, file);
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Feed a file's contents to a digest, using a {@link FileChannel}.
+	 *
+	 * @param digest
+	 *            the digest
+	 * @param file
+	 *            the file
+	 * @throws IOException
+	 */
+	static void update(MessageDigest digest, File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size >= MAP_THRESHOLD) {
+				for (long offset = 0; offset < size; offset += MAP_CHUNK) {
+					MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_CHUNK, size - offset));
+					digest.update(mapped);
+				}
+			}
+			else {
+				ByteBuffer buffer = buffers.get();
+				for (;;) {
+					buffer.clear();
+					if (channel.read(buffer) < 0)
+						break;
+					buffer.flip();
+					digest.update(buffer);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Compute the checksum of a file the way the ImageJ updater does, using a
+	 * {@link FileInputStream}.
+	 *
+	 * @param path
+	 *            the path relative to the ImageJ root directory
+	 * @param file
+	 *            the file
+	 * @return the checksum
+	 * @throws IOException
+	 */
+	static String streamDigest(String path, File file) throws IOException {
+		MessageDigest digest = newDigest(path);
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			for (;;) {
+				int count = in.read(buffer);
+				if (count < 0)
+					break;
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Make a new digest computing the updater's checksum of a plain file.
+	 *
+	 * @param path
+	 *            the path relative to the ImageJ root directory, or
+	 *            <i>null</i> for the plain SHA-1 of the contents
+	 * @return the digest
+	 * @throws IOException
+	 */
+	static MessageDigest newDigest(String path) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			if (path != null)
+				digest.update(path.getBytes("ASCII"));
+			return digest;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		final char[] hex = "0123456789abcdef".toCharArray();
+		char[] buffer = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			buffer[i * 2] = hex[(bytes[i] >> 4) & 0xf];
+			buffer[i * 2 + 1] = hex[bytes[i] & 0xf];
+		}
+		return new String(buffer);
+	}
+
+	/**
+	 * Compare the throughput of the stream and the channel based hashing.
+	 *
+	 * Usage: <code>java -cp Fiji_Updater.jar fiji.updater.FileDigest
+	 * &lt;file&gt;...</code>; each file is hashed three times with either
+	 * method, and the best time is reported.
+	 *
+	 * @param args
+	 *            the files to hash
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		for (String path : args) {
+			File file = new File(path);
+			long stream = Long.MAX_VALUE, channel = Long.MAX_VALUE;
+			String expect = null, actual = null;
+			for (int i = 0; i < 3; i++) {
+				long start = System.nanoTime();
+				expect = streamDigest(path, file);
+				stream = Math.min(stream, System.nanoTime() - start);
+				start = System.nanoTime();
+				actual = digest(path, file);
+				channel = Math.min(channel, System.nanoTime() - start);
+			}
+			double megabytes = file.length() / 1048576.0;
+			System.out.println(String.format("%s (%.1f MB): stream %.1f MB/s, channel %.1f MB/s%s", path, megabytes,
+				megabytes * 1e9 / Math.max(stream, 1), megabytes * 1e9 / Math.max(channel, 1),
+				expect.equals(actual) ? "" : " (MISMATCH!)"));
+		}
+	}
+}
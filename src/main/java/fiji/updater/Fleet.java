@@ -0,0 +1,324 @@
+package fiji.updater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Updates many ImageJ root directories concurrently, in a single JVM.
+ *
+ * Servers hosting dozens of Fiji installations would otherwise need to start
+ * one JVM per installation. In fleet mode, the roots are updated in parallel
+ * (the <i>fiji.updater.fleetParallel</i> system property limits how many at a
+ * time) and every file is downloaded only once, via {@link SharedArtifacts}
+ * (the host-wide store, if configured, or a temporary directory otherwise).
+ * Likewise, the <i>db.xml.gz</i> of every update site is downloaded only
+ * once per run (see {@link Sites}); the roots still parse it individually,
+ * as the parsed {@code FilesCollection}s are modified per root.
+ *
+ * Usage: <code>fiji.updater.Main fleet &lt;root&gt;... [@&lt;file listing
+ * roots&gt;...]</code>
+ *
+ * After all roots were handled, a summary with one line per root is printed.
+ */
+class Fleet {
+	/**
+	 * The system property specifying how many roots to update at the same
+	 * time; defaults to the number of processors.
+	 */
+	final static String PARALLEL_PROPERTY = "fiji.updater.fleetParallel";
+
+	/**
+	 * The outcome of updating a single root.
+	 */
+	static class Result {
+		final File root;
+		int files;
+		long bytes, millis;
+		Throwable error;
+
+		Result(File root) {
+			this.root = root;
+		}
+
+		@Override
+		public String toString() {
+			if (error != null)
+				return root + "\tFAILED\t" + error;
+			if (files == 0)
+				return root + "\tUP_TO_DATE\t" + millis + " ms";
+			return root + "\tUPDATED\t" + files + " files, " + bytes + " bytes downloaded, " + millis + " ms";
+		}
+	}
+
+	/**
+	 * The update sites' <i>db.xml.gz</i> files, shared between the roots.
+	 *
+	 * Each site's <i>db.xml.gz</i> is downloaded once, into a local directory
+	 * whose <i>db.xml.gz</i> has the remote modification time. While the
+	 * ImageJ updater reads the sites of a root, the sites' URLs are pointed
+	 * to those directories (see {@link #redirect(Object)}), and restored
+	 * afterwards, so that the files themselves are
+	 * still downloaded from (and the URLs written with) the original sites.
+	 */
+	static class Sites {
+		private final File directory;
+		private final ConcurrentMap<String, FutureTask<File>> downloads = new ConcurrentHashMap<String, FutureTask<File>>();
+
+		/**
+		 * Construct a new set of shared update site databases.
+		 *
+		 * @param directory
+		 *            the directory to download the <i>db.xml.gz</i> files to
+		 */
+		Sites(File directory) {
+			this.directory = directory;
+		}
+
+		/**
+		 * Get the local copy of an update site.
+		 *
+		 * @param url
+		 *            the URL of the update site
+		 * @return the directory containing the site's <i>db.xml.gz</i>
+		 * @throws IOException
+		 */
+		File get(final String url) throws IOException {
+			FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+				@Override
+				public File call() throws IOException {
+					return download(url);
+				}
+			});
+			FutureTask<File> existing = downloads.putIfAbsent(url, task);
+			try {
+				if (existing != null)
+					return existing.get();
+				task.run();
+				return task.get();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			} catch (ExecutionException e) {
+				if (existing == null)
+					downloads.remove(url, task);
+				throw Workers.unwrap(e);
+			}
+		}
+
+		private File download(String url) throws IOException {
+			MessageDigest digest = FileDigest.newDigest(null);
+			File site = new File(directory, FileDigest.toHex(digest.digest(url.getBytes("UTF-8"))));
+			if (!site.isDirectory() && !site.mkdirs())
+				throw new IOException("Could not make directory " + site);
+			URLConnection connection = Validators.open(new URL(url + (url.endsWith("/") ? "" : "/") + "db.xml.gz"));
+			File dbXmlGz = new File(site, "db.xml.gz");
+			Files.copy(connection.getInputStream(), dbXmlGz.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			// the updater records the modification time as the site's timestamp
+			long lastModified = connection.getLastModified();
+			if (lastModified > 0)
+				dbXmlGz.setLastModified(lastModified);
+			return site;
+		}
+
+		/**
+		 * Point the update sites of a root to their local copies.
+		 *
+		 * Sites whose <i>db.xml.gz</i> could not be downloaded keep their URL,
+		 * so that the ImageJ updater reports the problem itself.
+		 *
+		 * @param files
+		 *            the {@code FilesCollection}
+		 * @return the update sites mapped to their original URLs, to be
+		 *         restored after reading (see
+		 *         {@link Adapter#setUpdateSiteURLs(Map)})
+		 * @throws Exception
+		 */
+		Map<Object, String> redirect(Object files) throws Exception {
+			Map<Object, String> result = new LinkedHashMap<Object, String>();
+			for (Map.Entry<Object, String> entry : Adapter.getUpdateSiteURLs(files).entrySet()) {
+				File local;
+				try {
+					local = get(entry.getValue());
+				} catch (IOException e) {
+					continue;
+				}
+				result.put(entry.getKey(), entry.getValue());
+				Adapter.set(entry.getKey(), "url", local.toURI().toString());
+			}
+			return result;
+		}
+	}
+
+	private final Adapter adapter;
+	private final int parallel;
+
+	/**
+	 * Construct a new fleet updater.
+	 *
+	 * @param adapter
+	 *            the adapter providing access to the ImageJ updater
+	 * @param parallel
+	 *            the maximal number of roots to update at the same time
+	 */
+	Fleet(Adapter adapter, int parallel) {
+		this.adapter = adapter;
+		this.parallel = Math.max(1, parallel);
+	}
+
+	/**
+	 * Update the given roots.
+	 *
+	 * @param roots
+	 *            the ImageJ root directories
+	 * @return the results, in the same order as the roots
+	 * @throws IOException
+	 */
+	List<Result> run(List<File> roots) throws IOException {
+		if (System.getProperty("ij.dir") == null && !roots.isEmpty())
+			System.setProperty("ij.dir", roots.get(0).getAbsolutePath());
+		if (!adapter.loadUpdater())
+			throw new IOException("Could not load the ImageJ updater");
+		SharedArtifacts store = SharedArtifacts.getStore();
+		final SharedArtifacts artifacts = store != null ? store : new SharedArtifacts(Files.createTempDirectory("fiji-updater-fleet").toFile());
+		final File sitesDirectory = Files.createTempDirectory("fiji-updater-sites").toFile();
+		final Sites sites = new Sites(sitesDirectory);
+		ExecutorService executor = Workers.newPool(Math.min(parallel, Math.max(1, roots.size())), "Fleet update");
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for (final File root : roots)
+				futures.add(executor.submit(new Callable<Result>() {
+					@Override
+					public Result call() {
+						return update(root, artifacts, sites);
+					}
+				}));
+			List<Result> results = new ArrayList<Result>();
+			for (Future<Result> future : futures)
+				results.add(Workers.get(future));
+			return results;
+		} finally {
+			executor.shutdownNow();
+			if (artifacts != store)
+				artifacts.dispose();
+			delete(sitesDirectory);
+		}
+	}
+
+	private Result update(File root, SharedArtifacts artifacts, Sites sites) {
+		Result result = new Result(root);
+		Metrics.Phase phase = Metrics.get().start("update " + root);
+		long start = System.nanoTime();
+		try {
+			if (!root.isDirectory())
+				throw new IOException("Not a directory");
+			adapter.update(root, artifacts, sites, result);
+		} catch (Throwable t) {
+			result.error = t;
+		}
+		result.millis = (System.nanoTime() - start) / 1000000;
+		phase.addBytes(result.bytes).addFiles(result.files).end();
+		return result;
+	}
+
+	private static void delete(File file) {
+		File[] list = file.listFiles();
+		if (list != null)
+			for (File child : list)
+				delete(child);
+		file.delete();
+	}
+
+	/**
+	 * Parse the command-line arguments into a list of roots.
+	 *
+	 * Arguments starting with <i>@</i> name files listing one root per line;
+	 * empty lines and lines starting with <i>#</i> are ignored.
+	 *
+	 * @param args
+	 *            the arguments
+	 * @return the roots
+	 * @throws IOException
+	 */
+	static List<File> parseRoots(String[] args) throws IOException {
+		List<File> roots = new ArrayList<File>();
+		for (String arg : args) {
+			if (!arg.startsWith("@")) {
+				roots.add(new File(arg));
+				continue;
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(arg.substring(1)), "UTF-8"));
+			try {
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					line = line.trim();
+					if (!line.equals("") && !line.startsWith("#"))
+						roots.add(new File(line));
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return roots;
+	}
+
+	/**
+	 * Print the summary.
+	 *
+	 * @param results
+	 *            the results
+	 * @param out
+	 *            the stream to print to
+	 * @return the number of roots that failed to update
+	 */
+	static int printSummary(List<Result> results, PrintStream out) {
+		int failed = 0;
+		for (Result result : results) {
+			out.println(result);
+			if (result.error != null)
+				failed++;
+		}
+		out.println(results.size() + " roots, " + failed + " failed");
+		return failed;
+	}
+
+	/**
+	 * Run the fleet mode.
+	 *
+	 * @param args
+	 *            the roots, or files listing them
+	 * @return the exit code
+	 */
+	static int main(String[] args) {
+		try {
+			List<File> roots = parseRoots(args);
+			if (roots.isEmpty()) {
+				System.err.println("Usage: fleet <root>... [@<file listing roots>...]");
+				return 1;
+			}
+			int parallel = Integer.getInteger(PARALLEL_PROPERTY, Runtime.getRuntime().availableProcessors());
+			List<Result> results = new Fleet(new Adapter(false), parallel).run(roots);
+			return printSummary(results, System.out) > 0 ? 1 : 0;
+		} catch (IOException e) {
+			System.err.println("Fleet update failed: " + e.getMessage());
+			return 1;
+		}
+	}
+}
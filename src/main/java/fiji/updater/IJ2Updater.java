@@ -2,6 +2,7 @@ package fiji.updater;
 
 import ij.IJ;
 
+import java.io.File;
 import java.io.IOException;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -30,8 +31,37 @@ import org.xml.sax.SAXException;
 class IJ2Updater {
 	static void newCheck() throws IOException, ParserConfigurationException,
 			SAXException {
+		check().run();
+	}
+
+	/**
+	 * Performs the up-to-date check without interacting with the user.
+	 * <p>
+	 * The result is cached in the ImageJ root directory; see
+	 * {@link CheckCache}.
+	 * </p>
+	 * 
+	 * @return the action presenting the result to the user
+	 */
+	static Runnable check() throws IOException, ParserConfigurationException,
+			SAXException {
+		final String ijDir = System.getProperty("ij.dir");
+		final CheckCache cache = ijDir == null ? null : new CheckCache(new File(ijDir));
+		final String cached = cache == null ? null : cache.get();
+		final Result result = cached != null ? Result.valueOf(cached) : UpToDate.check();
+		if (cached == null && cache != null)
+			cache.put(result.name());
+		if (result == Result.PROXY_NEEDS_AUTHENTICATION)
+			throw new ProxyAuthenticationException();
+		return new Runnable() {
+			@Override
+			public void run() {
+				handle(result);
+			}
+		};
+	}
 
-		final Result result = UpToDate.check();
+	private static void handle(final Result result) {
 		switch (result) {
 		case UP_TO_DATE:
 		case OFFLINE:
@@ -61,9 +91,6 @@ class IJ2Updater {
 				}
 			}
 			break;
-		case PROXY_NEEDS_AUTHENTICATION:
-			throw new RuntimeException(
-					"TODO: authenticate proxy with the configured user/pass pair");
 		case READ_ONLY:
 			final String message = "Your ImageJ installation cannot be updated because it is read-only";
 			IJ.showMessage(message);
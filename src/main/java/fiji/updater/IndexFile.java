@@ -0,0 +1,104 @@
+package fiji.updater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The file format of the indices kept in the ImageJ root directory.
+ *
+ * An index file is a text file starting with a header line that identifies
+ * the kind of index and its version, followed by one line per record. The
+ * last line records the number of records and a CRC32 of the record lines;
+ * if the header, the number or the CRC32 does not match, the index is
+ * considered corrupt. See {@link ChecksumIndex} and {@link PluginIndex}.
+ */
+class IndexFile {
+	private final static String TRAILER = "# end ";
+
+	/**
+	 * Read an index file.
+	 *
+	 * @param file
+	 *            the index file
+	 * @param header
+	 *            the expected header line
+	 * @return the record lines
+	 * @throws IOException
+	 *             if the file could not be read or is corrupt
+	 */
+	static List<String> read(File file, String header) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line = reader.readLine();
+			if (!header.equals(line))
+				throw new IOException("Unexpected header: " + line);
+			CRC32 crc = new CRC32();
+			List<String> result = new ArrayList<String>();
+			for (;;) {
+				line = reader.readLine();
+				if (line == null)
+					throw new IOException("Truncated");
+				if (line.startsWith(TRAILER)) {
+					String expect = result.size() + " " + Long.toHexString(crc.getValue());
+					if (!expect.equals(line.substring(TRAILER.length())))
+						throw new IOException("Checksum mismatch");
+					return result;
+				}
+				crc.update(line.getBytes("UTF-8"));
+				result.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Write an index file.
+	 *
+	 * The index is written to a uniquely named temporary file in the same
+	 * directory first which is then renamed, so that a crash leaves either
+	 * the old or the new index behind, and concurrent writers do not write to
+	 * the same temporary file.
+	 *
+	 * @param file
+	 *            the index file
+	 * @param header
+	 *            the header line
+	 * @param lines
+	 *            the record lines
+	 * @throws IOException
+	 */
+	static void write(File file, String header, Collection<String> lines) throws IOException {
+		File tmp = File.createTempFile(file.getName() + "-", ".tmp", file.getAbsoluteFile().getParentFile());
+		boolean success = false;
+		Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			CRC32 crc = new CRC32();
+			writer.write(header + "\n");
+			for (String line : lines) {
+				crc.update(line.getBytes("UTF-8"));
+				writer.write(line + "\n");
+			}
+			writer.write(TRAILER + lines.size() + " " + Long.toHexString(crc.getValue()) + "\n");
+			writer.close();
+			if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file)))
+				throw new IOException("Could not write " + file);
+			success = true;
+		} finally {
+			if (!success) {
+				writer.close();
+				tmp.delete();
+			}
+		}
+	}
+}
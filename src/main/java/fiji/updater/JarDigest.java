@@ -0,0 +1,399 @@
+package fiji.updater;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Compute the updater's checksum of a <i>.jar</i> file while it streams in.
+ *
+ * The ImageJ updater does not hash a <i>.jar</i> file's bytes, but its
+ * entries, sorted by name: the SHA-1 of every entry's name followed by its
+ * uncompressed contents. Lines starting with a hash in <i>.properties</i>
+ * files (e.g. the date Maven puts there) are skipped, and of the manifest,
+ * only the <i>Main-Class</i> is kept.
+ *
+ * A <i>.jar</i> file is a sequence of local file headers, each followed by
+ * the entry's data, and ends with the central directory. This digest parses
+ * the local file headers as the bytes are fed to it, inflates the entries
+ * and buffers their contents; once the digest is asked for, the entries are
+ * sorted and hashed just like the updater does.
+ *
+ * Files this class cannot parse without seeking, such as <i>ZIP64</i>
+ * archives or stored entries whose size follows their data, or whose
+ * contents exceed {@link #MAX_BUFFERED}, yield an empty digest, i.e. a
+ * checksum that never matches. The caller then has to read the file back
+ * and let the updater checksum it.
+ */
+class JarDigest extends MessageDigest {
+	/**
+	 * The maximal number of uncompressed bytes to buffer.
+	 */
+	final static long MAX_BUFFERED = 64 << 20;
+
+	private final static int LOCAL_HEADER = 0x04034b50;
+	private final static int CENTRAL_HEADER = 0x02014b50;
+	private final static int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private final static int DATA_DESCRIPTOR = 0x08074b50;
+	private final static int LOCAL_HEADER_SIZE = 30;
+
+	private enum State {
+		HEADER, NAME, STORED, DEFLATED, DESCRIPTOR, DONE, FAILED
+	}
+
+	private State state;
+	private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+	private final Map<String, byte[]> entries = new TreeMap<String, byte[]>();
+	private final byte[] inflated = new byte[65536];
+	private Inflater inflater;
+	private String name;
+	private boolean hasDescriptor;
+	private long remaining, buffered;
+
+	JarDigest() {
+		super("SHA-1");
+		engineReset();
+	}
+
+	/**
+	 * Compute the updater's checksum of a local <i>.jar</i> file.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the checksum, or the empty string if the file is not supported
+	 * @throws IOException
+	 */
+	static String digest(File file) throws IOException {
+		JarDigest digest = new JarDigest();
+		FileDigest.update(digest, file);
+		return FileDigest.toHex(digest.digest());
+	}
+
+	/**
+	 * Write a small <i>.jar</i> file exercising the updater's special cases.
+	 *
+	 * The entries are not sorted, and there is a manifest with more than a
+	 * <i>Main-Class</i>, a <i>.properties</i> file with a comment, a directory
+	 * and a stored as well as deflated entries (the latter followed by data
+	 * descriptors).
+	 *
+	 * @param file
+	 *            the destination
+	 * @throws IOException
+	 */
+	static void writeSample(File file) throws IOException {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "fiji.updater.Main");
+		manifest.getMainAttributes().putValue("Built-By", "Fiji Updater");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest);
+		try {
+			out.putNextEntry(new ZipEntry("z.txt"));
+			out.write("deflated\n".getBytes("ASCII"));
+			out.putNextEntry(new ZipEntry("dir/"));
+			out.putNextEntry(new ZipEntry("dir/a.properties"));
+			out.write("#Generated\nkey=value\n# comment\n".getBytes("ASCII"));
+			byte[] stored = "stored\n".getBytes("ASCII");
+			CRC32 crc = new CRC32();
+			crc.update(stored);
+			ZipEntry entry = new ZipEntry("b.txt");
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(stored.length);
+			entry.setCompressedSize(stored.length);
+			entry.setCrc(crc.getValue());
+			out.putNextEntry(entry);
+			out.write(stored);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		engineUpdate(new byte[] { input }, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int length) {
+		try {
+			while (length > 0 && state != State.DONE && state != State.FAILED) {
+				int count = consume(input, offset, length);
+				offset += count;
+				length -= count;
+			}
+		} catch (IOException e) {
+			fail();
+		} catch (DataFormatException e) {
+			fail();
+		}
+	}
+
+	/**
+	 * Consume bytes according to the current state.
+	 *
+	 * @return the number of bytes consumed
+	 */
+	private int consume(byte[] input, int offset, int length) throws IOException, DataFormatException {
+		switch (state) {
+		case HEADER:
+			if (header.size() < 4) {
+				int count = fill(input, offset, length, 4);
+				if (header.size() == 4) {
+					int signature = getInt(header.toByteArray(), 0);
+					if (signature == CENTRAL_HEADER || signature == END_OF_CENTRAL_DIRECTORY)
+						state = State.DONE;
+					else if (signature != LOCAL_HEADER)
+						fail();
+				}
+				return count;
+			}
+			int count = fill(input, offset, length, LOCAL_HEADER_SIZE);
+			if (header.size() == LOCAL_HEADER_SIZE) {
+				byte[] bytes = header.toByteArray();
+				remaining = getShort(bytes, 26) + getShort(bytes, 28);
+				state = State.NAME;
+				if (remaining == 0)
+					startEntry();
+			}
+			return count;
+		case NAME:
+			count = fill(input, offset, length, LOCAL_HEADER_SIZE + (int)remaining);
+			if (header.size() == LOCAL_HEADER_SIZE + remaining)
+				startEntry();
+			return count;
+		case STORED:
+			count = (int)Math.min(length, remaining);
+			append(input, offset, count);
+			remaining -= count;
+			if (remaining == 0)
+				endEntry();
+			return count;
+		case DEFLATED:
+			inflater.setInput(input, offset, length);
+			while (state == State.DEFLATED && !inflater.finished() && !inflater.needsInput()) {
+				int inflatedCount = inflater.inflate(inflated);
+				if (inflatedCount == 0 && inflater.needsDictionary())
+					throw new DataFormatException("Dictionary needed");
+				append(inflated, 0, inflatedCount);
+			}
+			if (state != State.DEFLATED || !inflater.finished())
+				return length;
+			count = length - inflater.getRemaining();
+			endEntry();
+			return count;
+		case DESCRIPTOR:
+			if (header.size() < 4)
+				return fill(input, offset, length, 4);
+			// the signature is optional: crc, compressed and uncompressed size follow
+			int size = getInt(header.toByteArray(), 0) == DATA_DESCRIPTOR ? 16 : 12;
+			count = fill(input, offset, length, size);
+			if (header.size() == size) {
+				header.reset();
+				state = State.HEADER;
+			}
+			return count;
+		default:
+			return length;
+		}
+	}
+
+	/**
+	 * Parse the local file header and start reading the entry's data.
+	 */
+	private void startEntry() throws IOException {
+		byte[] bytes = header.toByteArray();
+		header.reset();
+		int flags = getShort(bytes, 6);
+		int method = getShort(bytes, 8);
+		long size = getInt(bytes, 18) & 0xffffffffl;
+		int nameLength = getShort(bytes, 26);
+		name = new String(bytes, LOCAL_HEADER_SIZE, nameLength, "UTF-8");
+		hasDescriptor = (flags & 8) != 0;
+		// encrypted, or ZIP64
+		if ((flags & 1) != 0 || size == 0xffffffffl || hasZip64Extra(bytes, LOCAL_HEADER_SIZE + nameLength))
+			fail();
+		else if (method == 0 && !hasDescriptor) {
+			remaining = size;
+			state = State.STORED;
+			if (remaining == 0)
+				endEntry();
+		}
+		else if (method == 8) {
+			if (inflater == null)
+				inflater = new Inflater(true);
+			else
+				inflater.reset();
+			state = State.DEFLATED;
+		}
+		else
+			fail();
+	}
+
+	private void endEntry() {
+		if (state == State.FAILED)
+			return;
+		if (entries.containsKey(name)) {
+			fail();
+			return;
+		}
+		entries.put(name, contents.toByteArray());
+		contents.reset();
+		if (hasDescriptor)
+			state = State.DESCRIPTOR;
+		else
+			state = State.HEADER;
+	}
+
+	private void append(byte[] bytes, int offset, int length) {
+		buffered += length;
+		if (buffered > MAX_BUFFERED)
+			fail();
+		else
+			contents.write(bytes, offset, length);
+	}
+
+	private void fail() {
+		state = State.FAILED;
+		entries.clear();
+		contents.reset();
+	}
+
+	/**
+	 * Add bytes to the header until it reaches a given size.
+	 *
+	 * @return the number of bytes consumed
+	 */
+	private int fill(byte[] input, int offset, int length, int size) {
+		int count = Math.min(length, size - header.size());
+		header.write(input, offset, count);
+		return count;
+	}
+
+	private static boolean hasZip64Extra(byte[] bytes, int offset) {
+		while (offset + 4 <= bytes.length) {
+			if (getShort(bytes, offset) == 0x0001)
+				return true;
+			offset += 4 + getShort(bytes, offset + 2);
+		}
+		return false;
+	}
+
+	private static int getShort(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8);
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return getShort(bytes, offset) | (getShort(bytes, offset + 2) << 16);
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		try {
+			if (state != State.DONE)
+				return new byte[0];
+			MessageDigest digest = FileDigest.newDigest(null);
+			for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				String name = entry.getKey();
+				digest.update(name.getBytes("ASCII"));
+				byte[] contents = entry.getValue();
+				if (name.endsWith(".properties"))
+					contents = skipHashedLines(contents);
+				else if (name.equals("META-INF/MANIFEST.MF"))
+					contents = keepOnlyMainClass(contents);
+				digest.update(contents);
+			}
+			return digest.digest();
+		} catch (IOException e) {
+			return new byte[0];
+		} finally {
+			engineReset();
+		}
+	}
+
+	@Override
+	protected void engineReset() {
+		state = State.HEADER;
+		header.reset();
+		contents.reset();
+		entries.clear();
+		buffered = 0;
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+	}
+
+	/**
+	 * Skip the lines starting with a hash, like the updater's
+	 * {@code SkipHashedLines} does.
+	 *
+	 * This mirrors the updater's byte-wise implementation, quirks included.
+	 */
+	private static byte[] skipHashedLines(byte[] bytes) {
+		SkipHashedLines in = new SkipHashedLines(bytes);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (;;) {
+			int ch = in.read();
+			if (ch < 0)
+				break;
+			out.write(ch);
+		}
+		return out.toByteArray();
+	}
+
+	private static class SkipHashedLines {
+		private final byte[] bytes;
+		private int position;
+		private boolean atLineStart = true;
+
+		SkipHashedLines(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		int read() {
+			int ch = position < bytes.length ? bytes[position++] & 0xff : -1;
+			if (atLineStart) {
+				if (ch == '#')
+					while ((ch = read()) != '\n' && ch != -1)
+						; // do nothing
+				else
+					atLineStart = false;
+			}
+			else if (ch == '\n')
+				atLineStart = true;
+			return ch;
+		}
+	}
+
+	/**
+	 * Keep only the <i>Main-Class</i> of a manifest, like the updater's
+	 * {@code FilterManifest} does.
+	 */
+	private static byte[] keepOnlyMainClass(byte[] bytes) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes)));
+		StringBuilder builder = new StringBuilder();
+		for (;;) {
+			String line = reader.readLine();
+			if (line == null)
+				break;
+			if (line.startsWith("Main-Class:"))
+				builder.append(line).append("\n");
+		}
+		return builder.toString().getBytes();
+	}
+}
@@ -0,0 +1,386 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checksum the local files of an ImageJ installation in parallel.
+ *
+ * The ImageJ updater's {@code Checksummer} walks the ImageJ root directory
+ * on a single thread. On cold network file systems, that takes a long time,
+ * most of it spent waiting for I/O. This class walks the directories the
+ * updater cares about in a fork/join pool and hashes the files on a
+ * configurable number of worker threads.
+ *
+ * The checksums and timestamps are obtained from the ImageJ updater's
+ * {@code Util} class, i.e. they are identical to the ones the
+ * {@code Checksummer} would have computed. Likewise, the files are selected
+ * by the {@code Checksummer}'s own rules (see {@link #DIRECTORIES} and
+ * {@link #LAUNCHERS}) if they can be read from the updater.
+ */
+class LocalScan {
+	/**
+	 * The directories to scan, relative to the ImageJ root directory.
+	 * 
+	 * This is a copy of the {@code Checksummer}'s table, used when it cannot
+	 * be read from the ImageJ updater: the directories alternate with the
+	 * extensions of the files to consider in them, <i>null</i> meaning all
+	 * files.
+	 */
+	final static String[][] DIRECTORIES = {
+		{ "jars", "retro", "misc" }, { ".jar", ".class" },
+		{ "plugins" }, { ".jar", ".class", ".txt", ".ijm", ".py", ".rb", ".clj", ".js", ".bsh", ".groovy", ".gvy" },
+		{ "scripts" }, { ".py", ".rb", ".clj", ".js", ".bsh", ".m", ".groovy", ".gvy" },
+		{ "macros" }, { ".txt", ".ijm", ".png" },
+		{ "luts" }, { ".lut" },
+		{ "images" }, { ".png", ".tif", ".txt" },
+		{ "lib" }, null,
+		{ "mm" }, null,
+		{ "mmautofocus" }, null,
+		{ "mmplugins" }, null
+	};
+
+	/**
+	 * The launchers, relative to the ImageJ root directory.
+	 * 
+	 * This is a copy of the ImageJ updater's {@code Util.launchers}, used when
+	 * it cannot be read from the updater.
+	 */
+	final static String[] LAUNCHERS = {
+		"ImageJ-linux32", "ImageJ-linux64", "ImageJ-win32.exe", "ImageJ-win64.exe",
+		"ImageJ-macosx", "ImageJ-tiger",
+		"Contents/MacOS/ImageJ-macosx", "Contents/MacOS/ImageJ-tiger",
+		"fiji-linux", "fiji-linux64", "fiji-win32.exe", "fiji-win64.exe",
+		"fiji-macosx", "fiji-tiger",
+		"Contents/MacOS/fiji-macosx", "Contents/MacOS/fiji-tiger"
+	};
+
+	/**
+	 * The number of files a worker handles without splitting the work
+	 * further.
+	 */
+	private final static int THRESHOLD = 16;
+
+	private final Adapter adapter;
+	private final File ijDir;
+	private final int threads;
+	private final ChecksumIndex index;
+	private final String[][] directories;
+	private final String[] launchers;
+
+	/**
+	 * The result of checksumming a single file.
+	 */
+	static class Entry {
+		final String path;
+		final String checksum;
+		final long timestamp;
+		final long size;
+		final long lastModified;
+
+		Entry(String path, String checksum, long timestamp, long size, long lastModified) {
+			this.path = path;
+			this.checksum = checksum;
+			this.timestamp = timestamp;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * Receives the checksums in the order of the paths.
+	 *
+	 * Note that the listener is called from the worker threads, but only
+	 * from one at a time.
+	 */
+	interface Listener {
+		void checksummed(Entry entry) throws Exception;
+	}
+
+	/**
+	 * Construct a new parallel scan.
+	 *
+	 * @param adapter
+	 *            the adapter providing access to the ImageJ updater, or
+	 *            <i>null</i> if the files are only to be listed
+	 * @param ijDir
+	 *            the ImageJ root directory
+	 * @param threads
+	 *            the number of worker threads
+	 * @param index
+	 *            the checksum index to consult and update, or <i>null</i>
+	 */
+	LocalScan(Adapter adapter, File ijDir, int threads, ChecksumIndex index) {
+		this.adapter = adapter;
+		this.ijDir = ijDir;
+		this.threads = Math.max(1, threads);
+		this.index = index;
+		directories = Adapter.getChecksummerDirectories();
+		launchers = Adapter.getLaunchers();
+	}
+
+	/**
+	 * Checksum all files the updater cares about.
+	 *
+	 * Files whose size and modification time match the checksum index are
+	 * not hashed again. The throughput is reported via
+	 * {@link UI#showStatus(String)} when done.
+	 *
+	 * @param ui
+	 *            the user interface to report the throughput to
+	 * @return the checksums, sorted by path
+	 * @throws Exception
+	 */
+	SortedMap<String, Entry> run(UI ui) throws Exception {
+		final SortedMap<String, Entry> result = new TreeMap<String, Entry>();
+		run(ui, new Listener() {
+			@Override
+			public void checksummed(Entry entry) {
+				result.put(entry.path, entry);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Checksum all files the updater cares about, reporting the files in the
+	 * order of their paths.
+	 *
+	 * Each file is reported as soon as it and all files sorting before it
+	 * are checksummed. Other than {@link #run(UI)}, this method holds on only
+	 * to the checksums that are waiting for a file sorting before them.
+	 *
+	 * @param ui
+	 *            the user interface to report the throughput to
+	 * @param listener
+	 *            the listener to receive the checksums
+	 * @throws Exception
+	 */
+	void run(UI ui, Listener listener) throws Exception {
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<String> paths = listFiles(pool);
+			Collections.sort(paths);
+
+			AtomicLong bytes = new AtomicLong();
+			pool.invoke(new Checksum(paths, 0, paths.size(), new InOrder(paths.size(), listener), bytes));
+
+			ui.showStatus(throughput(paths.size(), bytes.get(), System.nanoTime() - start));
+			if (index != null) {
+				index.retainAll(paths);
+				try {
+					index.save();
+				} catch (IOException e) {
+					// e.g. a read-only ImageJ root; the checksums are still valid
+					ui.showStatus("Could not save the checksum index: " + e.getMessage());
+				}
+			}
+		} catch (WrappedException e) {
+			throw (Exception)e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * List the files the updater cares about.
+	 * 
+	 * @return the paths relative to the ImageJ root directory, in no
+	 *         particular order
+	 */
+	List<String> listFiles() {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return listFiles(pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private List<String> listFiles(ForkJoinPool pool) {
+		List<String> paths = new ArrayList<String>();
+		for (String launcher : launchers)
+			if (new File(ijDir, launcher).isFile())
+				paths.add(launcher);
+		List<Walk> walks = new ArrayList<Walk>();
+		for (int i = 0; i + 1 < directories.length; i += 2)
+			for (String directory : directories[i])
+				walks.add(new Walk(directory, directories[i + 1]));
+		for (Walk walk : pool.invoke(new WalkAll(walks)))
+			paths.addAll(walk.join());
+		return paths;
+	}
+
+	/**
+	 * Format the throughput of a scan.
+	 *
+	 * @param files
+	 *            the number of files
+	 * @param bytes
+	 *            the number of bytes
+	 * @param nanos
+	 *            the elapsed time in nanoseconds
+	 * @return the message
+	 */
+	static String throughput(int files, long bytes, long nanos) {
+		double seconds = Math.max(nanos, 1) / 1e9;
+		return String.format("Checksummed %d files (%.1f MB) in %.1fs: %.0f files/s, %.1f MB/s",
+			files, bytes / 1048576.0, seconds, files / seconds, bytes / 1048576.0 / seconds);
+	}
+
+	/**
+	 * Starts the walks of all directories and waits for them to finish.
+	 */
+	private static class WalkAll extends RecursiveTask<List<Walk>> {
+		private static final long serialVersionUID = 1L;
+		private final List<Walk> walks;
+
+		WalkAll(List<Walk> walks) {
+			this.walks = walks;
+		}
+
+		@Override
+		protected List<Walk> compute() {
+			invokeAll(walks);
+			return walks;
+		}
+	}
+
+	/**
+	 * Lists the files in a directory, forking one task per subdirectory.
+	 */
+	private class Walk extends RecursiveTask<List<String>> {
+		private static final long serialVersionUID = 1L;
+		private final String directory;
+		private final String[] extensions;
+
+		Walk(String directory, String[] extensions) {
+			this.directory = directory;
+			this.extensions = extensions;
+		}
+
+		@Override
+		protected List<String> compute() {
+			String[] list = new File(ijDir, directory).list();
+			if (list == null)
+				return Collections.emptyList();
+			List<String> result = new ArrayList<String>();
+			List<Walk> subdirectories = new ArrayList<Walk>();
+			for (String name : list) {
+				if (name.startsWith("."))
+					continue;
+				String path = directory + "/" + name;
+				if (new File(ijDir, path).isDirectory())
+					subdirectories.add(new Walk(path, extensions));
+				else if (hasExtension(name))
+					result.add(path);
+			}
+			invokeAll(subdirectories);
+			for (Walk walk : subdirectories)
+				result.addAll(walk.join());
+			return result;
+		}
+
+		private boolean hasExtension(String name) {
+			if (extensions == null)
+				return true;
+			for (String extension : extensions)
+				if (name.endsWith(extension))
+					return true;
+			return false;
+		}
+	}
+
+	/**
+	 * Checksums a range of files, splitting the range until it is small
+	 * enough.
+	 */
+	private class Checksum extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<String> paths;
+		private final int from, to;
+		private final InOrder listener;
+		private final AtomicLong bytes;
+
+		Checksum(List<String> paths, int from, int to, InOrder listener, AtomicLong bytes) {
+			this.paths = paths;
+			this.from = from;
+			this.to = to;
+			this.listener = listener;
+			this.bytes = bytes;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > THRESHOLD) {
+				int middle = (from + to) / 2;
+				invokeAll(new Checksum(paths, from, middle, listener, bytes), new Checksum(paths, middle, to, listener, bytes));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				String path = paths.get(i);
+				File file = new File(ijDir, path);
+				try {
+					Entry entry = index == null ? null : index.get(path, file);
+					if (entry == null) {
+						long size = file.length(), lastModified = file.lastModified();
+						entry = new Entry(path, adapter.getDigest(path, file), adapter.getTimestamp(file), size, lastModified);
+						if (index != null)
+							index.put(entry);
+					}
+					bytes.addAndGet(entry.size);
+					listener.checksummed(i, entry);
+				} catch (Exception e) {
+					throw new WrappedException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands the checksums to a listener in the order of the paths.
+	 *
+	 * Checksums arriving early are held back until all checksums before them
+	 * have been handed on.
+	 */
+	private static class InOrder {
+		private final Entry[] pending;
+		private final Listener listener;
+		private int next;
+
+		InOrder(int count, Listener listener) {
+			pending = new Entry[count];
+			this.listener = listener;
+		}
+
+		synchronized void checksummed(int index, Entry entry) throws Exception {
+			pending[index] = entry;
+			while (next < pending.length && pending[next] != null) {
+				Entry current = pending[next];
+				pending[next++] = null;
+				listener.checksummed(current);
+			}
+		}
+	}
+
+	/**
+	 * Transports checked exceptions out of the fork/join pool.
+	 */
+	private static class WrappedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		WrappedException(Exception cause) {
+			super(cause);
+		}
+	}
+}
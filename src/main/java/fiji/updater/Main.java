@@ -1,13 +1,32 @@
 package fiji.updater;
 
+import java.util.Arrays;
+
 /**
  * Access the command-line interface of the ImageJ Updater
  *
+ * The special command <i>fleet</i> updates several ImageJ root directories
+ * concurrently; see {@link Fleet}. The special command <i>list-plugins</i>
+ * lists the menu entries of all <i>.jar</i> files; see {@link PluginIndex}.
+ *
  * @author Johannes Schindelin
  * @deprecated use ij-updater-core directly
  */
 public class Main {
 	public static void main(String[] args) {
-		new Adapter(false).runCommandLineUpdater(args);
+		if (args.length > 0 && "fleet".equals(args[0])) {
+			int exitCode = Fleet.main(Arrays.copyOfRange(args, 1, args.length));
+			Metrics.get().writeReport();
+			System.exit(exitCode);
+		}
+		if (args.length > 0 && "list-plugins".equals(args[0]))
+			System.exit(PluginIndex.main(Arrays.copyOfRange(args, 1, args.length)));
+		Metrics.Phase phase = Metrics.get().start("main");
+		try {
+			new Adapter(false).runCommandLineUpdater(args);
+		} finally {
+			phase.end();
+			Metrics.get().writeReport();
+		}
 	}
 }
@@ -0,0 +1,226 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records how long the phases of the updater take.
+ *
+ * Every phase records its wall time, the number of bytes transferred and
+ * the number of files handled. If the <i>fiji.updater.metrics</i> system
+ * property names a file, a JSON report of all phases is written to it by
+ * {@link #writeReport()}.
+ *
+ * When running on a Java with Flight Recorder, every phase is also emitted as
+ * a <i>fiji.updater.Phase</i> event. Since we cannot link to
+ * <i>jdk.jfr</i> at compile time, the event type is created via the
+ * {@code EventFactory}, by reflection.
+ */
+class Metrics {
+	final static String REPORT_PROPERTY = "fiji.updater.metrics";
+
+	private final static Metrics instance = new Metrics();
+
+	private final List<Phase> phases = new ArrayList<Phase>();
+	private Object eventFactory;
+	private Method newEvent, begin, end, set, commit;
+
+	/**
+	 * Get the metrics of the current session.
+	 *
+	 * @return the metrics
+	 */
+	static Metrics get() {
+		return instance;
+	}
+
+	private Metrics() {
+		try {
+			Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+			Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+			Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			Constructor<?> newValue = valueDescriptor.getConstructor(Class.class, String.class);
+			List<Object> annotations = Arrays.asList(
+				newAnnotation.newInstance(Class.forName("jdk.jfr.Name"), "fiji.updater.Phase"),
+				newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), "Fiji Updater Phase"),
+				newAnnotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "Fiji" }));
+			List<Object> fields = Arrays.asList(
+				newValue.newInstance(String.class, "phase"),
+				newValue.newInstance(long.class, "bytes"),
+				newValue.newInstance(long.class, "files"));
+			Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+			eventFactory = factory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+			newEvent = factory.getMethod("newEvent");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			begin = event.getMethod("begin");
+			end = event.getMethod("end");
+			set = event.getMethod("set", int.class, Object.class);
+			commit = event.getMethod("commit");
+		} catch (Throwable t) {
+			// no Flight Recorder available
+			eventFactory = null;
+		}
+	}
+
+	/**
+	 * Start a new phase.
+	 *
+	 * @param name
+	 *            the name of the phase
+	 * @return the phase, to be {@link Phase#end() ended} when done
+	 */
+	Phase start(String name) {
+		return new Phase(name);
+	}
+
+	/**
+	 * A phase of the updater.
+	 */
+	class Phase {
+		private final String name;
+		private final long start = System.currentTimeMillis(), startNanos = System.nanoTime();
+		private long nanos = -1, bytes, files;
+		private Object event;
+
+		private Phase(String name) {
+			this.name = name;
+			if (eventFactory != null) try {
+				event = newEvent.invoke(eventFactory);
+				begin.invoke(event);
+			} catch (Throwable t) {
+				event = null;
+			}
+		}
+
+		/**
+		 * Record transferred bytes.
+		 *
+		 * @param count
+		 *            the number of bytes
+		 * @return the phase
+		 */
+		synchronized Phase addBytes(long count) {
+			bytes += count;
+			return this;
+		}
+
+		/**
+		 * Record handled files.
+		 *
+		 * @param count
+		 *            the number of files
+		 * @return the phase
+		 */
+		synchronized Phase addFiles(long count) {
+			files += count;
+			return this;
+		}
+
+		/**
+		 * End the phase.
+		 */
+		void end() {
+			synchronized (this) {
+				if (nanos >= 0)
+					return;
+				nanos = System.nanoTime() - startNanos;
+			}
+			synchronized (phases) {
+				phases.add(this);
+			}
+			if (event != null) try {
+				end.invoke(event);
+				set.invoke(event, 0, name);
+				set.invoke(event, 1, bytes);
+				set.invoke(event, 2, files);
+				commit.invoke(event);
+			} catch (Throwable t) {
+				// ignore
+			}
+		}
+
+		synchronized String toJSON() {
+			return "{\"phase\":" + quote(name) + ",\"start\":" + start + ",\"millis\":" + (nanos / 1000000.0)
+				+ ",\"bytes\":" + bytes + ",\"files\":" + files + "}";
+		}
+	}
+
+	/**
+	 * Get a JSON report of all phases ended so far.
+	 *
+	 * The report also describes the environment (Java version, operating
+	 * system, number of processors and scan threads, and whether a
+	 * {@link ClassDataSharing class-data-sharing archive} is in use), so
+	 * that reports of different runs can be compared over time.
+	 *
+	 * @return the report
+	 */
+	String toJSON() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("{\"java\":").append(quote(System.getProperty("java.version")));
+		builder.append(",\"os\":").append(quote(System.getProperty("os.name") + " " + System.getProperty("os.arch")));
+		builder.append(",\"processors\":").append(Runtime.getRuntime().availableProcessors());
+		builder.append(",\"threads\":").append(Integer.getInteger(Adapter.THREADS_PROPERTY, 0));
+		builder.append(",\"cds\":").append(ClassDataSharing.isInUse());
+		builder.append(",\"phases\":[");
+		synchronized (phases) {
+			for (int i = 0; i < phases.size(); i++) {
+				if (i > 0)
+					builder.append(",");
+				builder.append("\n  ").append(phases.get(i).toJSON());
+			}
+		}
+		builder.append("\n]}\n");
+		return builder.toString();
+	}
+
+	/**
+	 * Write the JSON report to the file specified by the
+	 * <i>fiji.updater.metrics</i> system property, if set.
+	 */
+	void writeReport() {
+		String path = System.getProperty(REPORT_PROPERTY);
+		if (path == null)
+			return;
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(new File(path)), "UTF-8");
+			try {
+				writer.write(toJSON());
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write metrics to " + path + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Quote a string for use in JSON.
+	 *
+	 * @param string
+	 *            the string
+	 * @return the quoted string
+	 */
+	static String quote(String string) {
+		if (string == null)
+			return "null";
+		StringBuilder builder = new StringBuilder("\"");
+		for (char c : string.toCharArray()) {
+			if (c == '"' || c == '\\')
+				builder.append('\\').append(c);
+			else if (c < 0x20)
+				builder.append(String.format("\\u%04x", (int)c));
+			else
+				builder.append(c);
+		}
+		return builder.append('"').toString();
+	}
+}
@@ -0,0 +1,403 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Maintains a local mirror of an update site.
+ *
+ * Sites without (or with slow) internet access can mirror update sites into
+ * local directories, e.g. ones served by an intranet web server or on a
+ * shared file system, and point the clients to them by setting the
+ * <i>fiji.updater.mirror</i> system property to a comma-separated list of
+ * <i>&lt;site-URL&gt;=&lt;mirror-URL&gt;</i> mappings. For backwards
+ * compatibility, a plain URL is the mirror of {@link #IMAGEJ_SITE}.
+ *
+ * The Fiji Updater redirects the update sites of the {@code FilesCollection}s
+ * it reads itself, i.e. when installing the ImageJ updater and in fleet mode
+ * (see {@link #rewrite(Object)}), as well as the remote updater's
+ * <i>.jar</i> files and <i>bootstrap.js</i> (see {@link #rewrite(String)}).
+ * The redirection is not persisted in <i>db.xml.gz</i>. The ImageJ updater,
+ * once started, reads the update sites on its own and is not redirected.
+ *
+ * A sync copies the site's <i>db.xml.gz</i>, the current version of every
+ * file listed in it, the <i>.jar</i> files needed by the remote updater and
+ * <i>bootstrap.js</i>. Since the files on an update site carry their
+ * timestamp in their name, they never change: files that are already
+ * mirrored with the correct size are not transferred again. Files of unknown
+ * size, such as <i>bootstrap.js</i> and <i>db.xml.gz</i> itself, are
+ * revalidated with a conditional request instead, and keep the remote
+ * modification time. A new <i>db.xml.gz</i> is moved into place atomically,
+ * and last, so that clients never see references to files that were not
+ * mirrored yet. Paths in <i>db.xml.gz</i> that would point outside the
+ * mirror directory are rejected.
+ */
+class Mirror {
+	/**
+	 * The system property specifying the URL of the mirror.
+	 */
+	final static String MIRROR_PROPERTY = "fiji.updater.mirror";
+
+	/**
+	 * The URL of the update site that is mirrored.
+	 */
+	final static String IMAGEJ_SITE = "http://update.imagej.net/";
+
+	private final String source;
+	private final File target;
+	private int transferred, skipped;
+	private long bytes;
+
+	/**
+	 * Construct a new mirror.
+	 *
+	 * @param source
+	 *            the URL of the update site to mirror
+	 * @param target
+	 *            the mirror directory
+	 */
+	Mirror(String source, File target) {
+		this.source = source.endsWith("/") ? source : source + "/";
+		this.target = target;
+	}
+
+	/**
+	 * Get the configured mirrors.
+	 *
+	 * @return the update site URLs mapped to the URLs of their mirrors, both
+	 *         ending in a slash
+	 */
+	static Map<String, String> getMirrors() {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		String property = System.getProperty(MIRROR_PROPERTY);
+		if (property == null)
+			return result;
+		for (String mapping : property.split(",")) {
+			mapping = mapping.trim();
+			if (mapping.equals(""))
+				continue;
+			int equals = mapping.indexOf('=');
+			if (equals < 0)
+				result.put(IMAGEJ_SITE, withSlash(mapping));
+			else
+				result.put(withSlash(mapping.substring(0, equals).trim()), withSlash(mapping.substring(equals + 1).trim()));
+		}
+		return result;
+	}
+
+	private static String withSlash(String url) {
+		return url.endsWith("/") ? url : url + "/";
+	}
+
+	/**
+	 * Redirect a URL to its mirror, if one is configured.
+	 *
+	 * @param url
+	 *            the URL on an update site
+	 * @return the URL on the mirror, or the original URL if the site is not
+	 *         mirrored
+	 */
+	static String rewrite(String url) {
+		for (Map.Entry<String, String> entry : getMirrors().entrySet()) {
+			String site = entry.getKey();
+			if (url.startsWith(site))
+				return entry.getValue() + url.substring(site.length());
+			// the update site URL itself, without the trailing slash
+			if (url.equals(site.substring(0, site.length() - 1)))
+				return entry.getValue();
+		}
+		return url;
+	}
+
+	/**
+	 * Redirect the update sites of a {@code FilesCollection} to their mirrors.
+	 *
+	 * @param files
+	 *            the {@code FilesCollection}, after reading it
+	 * @return the redirected update sites mapped to their original URLs, to be
+	 *         restored before writing <i>db.xml.gz</i> (see
+	 *         {@link Adapter#setUpdateSiteURLs(Map)})
+	 * @throws Exception
+	 */
+	static Map<Object, String> rewrite(Object files) throws Exception {
+		Map<Object, String> result = new LinkedHashMap<Object, String>();
+		if (System.getProperty(MIRROR_PROPERTY) == null)
+			return result;
+		for (Map.Entry<Object, String> entry : Adapter.getUpdateSiteURLs(files).entrySet()) {
+			String url = rewrite(entry.getValue());
+			if (url.equals(entry.getValue()))
+				continue;
+			result.put(entry.getKey(), entry.getValue());
+			Adapter.set(entry.getKey(), "url", url);
+		}
+		return result;
+	}
+
+	/**
+	 * Synchronize the mirror.
+	 *
+	 * @param connections
+	 *            the number of concurrent downloads
+	 * @throws IOException
+	 */
+	void sync(int connections) throws IOException {
+		if (!target.isDirectory() && !target.mkdirs())
+			throw new IOException("Could not make directory " + target);
+		File dbXmlGz = new File(target, "db.xml.gz");
+		// null if the mirrored db.xml.gz is still current
+		File newDbXmlGz = fetch("db.xml.gz", dbXmlGz);
+		try {
+			final Map<String, Long> files = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < Adapter.JARS.length; i++)
+				files.put("jars/" + RemoteJars.getFileName(i) + "-" + Adapter.TIMESTAMPS[i], -1l);
+			files.put("bootstrap.js", -1l);
+			files.putAll(getCurrentFiles(newDbXmlGz != null ? newDbXmlGz : dbXmlGz));
+
+			ExecutorService executor = Workers.newPool(connections, "Mirror download");
+			try {
+				List<Future<Void>> futures = new ArrayList<Future<Void>>();
+				for (final Map.Entry<String, Long> entry : files.entrySet())
+					futures.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							sync(entry.getKey(), entry.getValue());
+							return null;
+						}
+					}));
+				for (Future<Void> future : futures)
+					Workers.get(future);
+			} finally {
+				executor.shutdownNow();
+			}
+
+			if (newDbXmlGz != null)
+				Files.move(newDbXmlGz.toPath(), dbXmlGz.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			if (newDbXmlGz != null)
+				newDbXmlGz.delete();
+		}
+	}
+
+	/**
+	 * Synchronize a single file.
+	 *
+	 * @param path
+	 *            the path relative to the update site
+	 * @param size
+	 *            the expected size, or -1 for optional files of unknown size
+	 * @throws IOException
+	 */
+	private void sync(String path, long size) throws IOException {
+		File file = resolve(path);
+		if (size < 0) {
+			syncOptional(path, file);
+			return;
+		}
+		if (file.isFile() && file.length() == size) {
+			synchronized (this) {
+				skipped++;
+			}
+			return;
+		}
+		long count = Downloader.download(new URL(source + path), file, null, Downloader.Verification.size(size));
+		verify(path, file);
+		synchronized (this) {
+			transferred++;
+			bytes += count;
+		}
+	}
+
+	/**
+	 * Resolve a path relative to the update site in the mirror directory.
+	 *
+	 * The paths come from the update site's <i>db.xml.gz</i>; absolute paths
+	 * and paths leaving the mirror directory (e.g. via <i>..</i>) are
+	 * rejected.
+	 *
+	 * @param path
+	 *            the path relative to the update site
+	 * @return the file in the mirror directory
+	 * @throws IOException
+	 *             if the path does not point into the mirror directory
+	 */
+	File resolve(String path) throws IOException {
+		Path root = target.toPath().toAbsolutePath().normalize();
+		Path result = root.resolve(path).normalize();
+		if (Paths.get(path).isAbsolute() || !result.startsWith(root) || result.equals(root))
+			throw new IOException("Invalid path: " + path);
+		return result.toFile();
+	}
+
+	/**
+	 * Synchronize a file of unknown size that may change on the update site.
+	 *
+	 * Files that do not exist on the update site are skipped; see
+	 * {@link #fetch(String, File)}.
+	 */
+	private void syncOptional(String path, File file) throws IOException {
+		File tmp;
+		try {
+			tmp = fetch(path, file);
+		} catch (FileNotFoundException e) {
+			// optional files, e.g. bootstrap.js, need not exist on every site
+			return;
+		}
+		if (tmp != null) try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Download a file of unknown size unless the mirrored copy is current.
+	 *
+	 * An existing copy is revalidated with a conditional request; a new copy
+	 * gets the remote modification time, so that it can be revalidated the
+	 * next time.
+	 *
+	 * @param path
+	 *            the path relative to the update site
+	 * @param file
+	 *            the mirrored copy
+	 * @return the verified new copy, in a temporary file next to the mirrored
+	 *         copy that is to be moved into place by the caller, or
+	 *         <i>null</i> if the mirrored copy is current
+	 * @throws FileNotFoundException
+	 *             if the file does not exist on the update site
+	 * @throws IOException
+	 */
+	private File fetch(String path, File file) throws IOException {
+		URL url = new URL(source + path);
+		if (file.isFile() && file.length() > 0 && Validators.isUnmodifiedSince(url, file.lastModified())) {
+			synchronized (this) {
+				skipped++;
+			}
+			return null;
+		}
+		URLConnection connection = Validators.open(url);
+		InputStream in = connection.getInputStream();
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+			throw new IOException("Could not make directory " + parent);
+		File tmp = File.createTempFile(file.getName() + "-", ".tmp", parent);
+		long count;
+		boolean success = false;
+		try {
+			try {
+				count = Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				in.close();
+			}
+			verify(path, tmp);
+			long lastModified = connection.getLastModified();
+			if (lastModified > 0)
+				tmp.setLastModified(lastModified);
+			success = true;
+		} finally {
+			if (!success)
+				tmp.delete();
+		}
+		synchronized (this) {
+			transferred++;
+			bytes += count;
+		}
+		return tmp;
+	}
+
+	private static void verify(String path, File file) throws IOException {
+		if (path.endsWith(".jar") || path.contains(".jar-")) try {
+			RemoteJars.verify(file);
+		} catch (IOException e) {
+			file.delete();
+			throw new IOException("Corrupt " + path + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Get the current versions of all files listed in a <i>db.xml.gz</i>.
+	 *
+	 * @param dbXmlGz
+	 *            the <i>db.xml.gz</i> file
+	 * @return a map from the paths relative to the update site (file name
+	 *         plus timestamp) to the file sizes
+	 * @throws IOException
+	 */
+	static Map<String, Long> getCurrentFiles(File dbXmlGz) throws IOException {
+		final Map<String, Long> result = new LinkedHashMap<String, Long>();
+		InputStream in = new GZIPInputStream(new FileInputStream(dbXmlGz));
+		try {
+			SAXParserFactory.newInstance().newSAXParser().parse(in, new DefaultHandler() {
+				private String filename;
+
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes) {
+					if ("plugin".equals(qName))
+						filename = attributes.getValue("filename");
+					else if ("version".equals(qName) && filename != null) {
+						String size = attributes.getValue("filesize");
+						result.put(filename + "-" + attributes.getValue("timestamp"), size == null ? -1l : Long.parseLong(size));
+					}
+				}
+
+				@Override
+				public void endElement(String uri, String localName, String qName) {
+					if ("plugin".equals(qName))
+						filename = null;
+				}
+			});
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Could not parse " + dbXmlGz + ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Synchronize a mirror.
+	 *
+	 * Usage: <code>java -cp Fiji_Updater.jar fiji.updater.Mirror
+	 * &lt;mirror-directory&gt; [&lt;update-site-URL&gt;]</code>
+	 *
+	 * @param args
+	 *            the command-line arguments
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: fiji.updater.Mirror <mirror-directory> [<update-site-URL>]");
+			System.exit(1);
+		}
+		Mirror mirror = new Mirror(args.length > 1 ? args[1] : IMAGEJ_SITE, new File(args[0]));
+		long start = System.nanoTime();
+		mirror.sync(Integer.getInteger(ParallelInstaller.CONNECTIONS_PROPERTY, 4));
+		System.err.println("Mirrored " + mirror.source + " to " + mirror.target + ": " + mirror.transferred
+			+ " files (" + mirror.bytes + " bytes) transferred, " + mirror.skipped + " up to date, "
+			+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+}
@@ -0,0 +1,458 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the staged files over several connections at once.
+ *
+ * The ImageJ updater's {@code Installer} downloads one file after the other,
+ * which leaves most of the bandwidth unused on high-latency links. This class
+ * downloads the files into the <i>update/</i> directory, just like the
+ * {@code Installer}, but with a bounded number of concurrent connections and
+ * a number of retries per file. Every file is verified against the checksum
+ * recorded in the {@code FilesCollection} before {@link #start(Collection)}
+ * returns, i.e. before the caller moves the files into place.
+ *
+ * Files are verified while they are being downloaded, once {@link FileDigest}
+ * and {@link JarDigest} were found to agree with the updater (see
+ * {@link Adapter#canDigestWhileDownloading(String)}). Otherwise, and for
+ * <i>.jar</i> files {@link JarDigest} does not support, the files are read
+ * back from disk after downloading.
+ *
+ * All downloads report to a single progress object: the overall count is
+ * the number of bytes (kilobytes, if there are more than fit into an
+ * <i>int</i>) downloaded so far, updated as they arrive. Failed attempts,
+ * which are retried, are reported to the {@link UI}.
+ *
+ * Apart from downloading, this class does what the {@code Installer} does to
+ * prepare the <i>update/</i> directory for {@code moveUpdatedIntoPlace()}:
+ * files to uninstall are staged via the updater's own
+ * {@code stageForUninstall()}, a zero-length <i>update/</i> marker makes sure
+ * that the previous version of a file whose name changed (e.g. a versioned
+ * <i>.jar</i> file) is removed, and launchers are made executable.
+ *
+ * If enabled, {@link Delta deltas} against the installed versions are tried
+ * before downloading complete <i>.jar</i> files.
+ */
+class ParallelInstaller {
+	/**
+	 * The system property specifying the number of concurrent connections.
+	 */
+	final static String CONNECTIONS_PROPERTY = "fiji.updater.connections";
+
+	/**
+	 * The system property specifying how often to try downloading each file.
+	 */
+	final static String ATTEMPTS_PROPERTY = "fiji.updater.attempts";
+
+	/**
+	 * The system property to set to <i>true</i> to try {@link Delta deltas}
+	 * before downloading complete <i>.jar</i> files.
+	 */
+	final static String DELTAS_PROPERTY = "fiji.updater.deltas";
+
+	private final Adapter adapter;
+	private final Map<String, Object> files;
+	private final Object progress;
+	private final File ijDir;
+	private final int connections, attempts;
+	private final boolean deltas;
+	private SharedArtifacts artifacts;
+	private long transferred, totalBytes;
+
+	/**
+	 * Construct a new parallel installer.
+	 *
+	 * @param adapter
+	 *            the adapter providing access to the ImageJ updater
+	 * @param files
+	 *            the {@code FilesCollection}
+	 * @param progress
+	 *            the progress object to report to
+	 * @param ijDir
+	 *            the ImageJ root directory
+	 * @param connections
+	 *            the maximal number of concurrent downloads
+	 */
+	ParallelInstaller(Adapter adapter, Map<String, Object> files, Object progress, File ijDir, int connections) {
+		this.adapter = adapter;
+		this.files = files;
+		this.progress = progress;
+		this.ijDir = ijDir;
+		this.connections = Math.max(1, connections);
+		attempts = Math.max(1, Integer.getInteger(ATTEMPTS_PROPERTY, 3));
+		deltas = "true".equals(System.getProperty(DELTAS_PROPERTY));
+		artifacts = SharedArtifacts.getStore();
+	}
+
+	/**
+	 * Share the downloads with other installers.
+	 *
+	 * By default, the host-wide store is used, if configured via the
+	 * <i>fiji.updater.store</i> system property.
+	 *
+	 * @param artifacts
+	 *            the shared artifacts
+	 */
+	void setSharedArtifacts(SharedArtifacts artifacts) {
+		this.artifacts = artifacts;
+	}
+
+	/**
+	 * Download and verify the given files into the <i>update/</i> directory.
+	 *
+	 * The files the {@code FilesCollection} marks for uninstalling are staged,
+	 * too.
+	 *
+	 * @param toInstall
+	 *            the staged {@code FileObject}s
+	 * @return the number of bytes downloaded
+	 * @throws IOException
+	 *             if any file could not be downloaded or verified
+	 */
+	long start(Collection<Object> toInstall) throws IOException {
+		stageForUninstall();
+		for (Object file : toInstall) {
+			markRenamed(file);
+			totalBytes += Math.max(0, getSize(file));
+		}
+		progress("setTitle", "Downloading...");
+		progress("setCount", 0, scale(totalBytes));
+		ExecutorService executor = Workers.newPool(connections, "Updater download");
+		try {
+			List<Future<Long>> futures = new ArrayList<Future<Long>>();
+			for (final Object file : toInstall)
+				futures.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						return install(file);
+					}
+				}));
+			// wait for all downloads, so that none writes to update/ after we return
+			long bytes = 0;
+			IOException exception = null;
+			for (Future<Long> future : futures) try {
+				bytes += Workers.get(future);
+			} catch (IOException e) {
+				if (exception == null)
+					exception = e;
+			}
+			if (exception != null)
+				throw exception;
+			return bytes;
+		} finally {
+			executor.shutdownNow();
+			progress("done");
+		}
+	}
+
+	/**
+	 * Download and verify a single file.
+	 *
+	 * @param file
+	 *            the {@code FileObject}
+	 * @return the number of bytes downloaded
+	 * @throws Exception
+	 */
+	private long install(final Object file) throws Exception {
+		final String filename = Adapter.get(file, "filename");
+		final String checksum = Adapter.invoke(file, "getChecksum");
+		final URL url = new URL(Adapter.<String>invoke(files, "getURL", file));
+		final long size = getSize(file);
+		File saveTo = new File(new File(ijDir, "update"), filename);
+		final Item item = new Item(file, size);
+
+		progress("addItem", file);
+		if (deltas && filename.endsWith(".jar")) {
+			long bytes = installDelta(file, filename, checksum, url, saveTo);
+			if (bytes >= 0) {
+				itemDone(item);
+				return bytes;
+			}
+		}
+		long bytes;
+		if (artifacts == null)
+			bytes = download(filename, checksum, size, url, saveTo, item);
+		else
+			bytes = artifacts.get(checksum, saveTo, new SharedArtifacts.Download() {
+				@Override
+				public long to(File file) throws IOException {
+					return download(filename, checksum, size, url, file, item);
+				}
+
+				@Override
+				public void verify(File file) throws IOException {
+					if (size >= 0 && file.length() != size)
+						throw new IOException("Size mismatch for " + file + ": expected " + size + ", got " + file.length());
+					String actual = digest(filename, file);
+					if (!actual.equals(checksum))
+						throw new IOException("Checksum mismatch for " + file + ": expected " + checksum + ", got " + actual);
+				}
+			});
+		if (Boolean.TRUE.equals(Adapter.get(file, "executable")))
+			installExecutable(filename, saveTo);
+		itemDone(item);
+		return bytes;
+	}
+
+	/**
+	 * Stage the files marked for uninstalling.
+	 *
+	 * This is delegated to the {@code FileObject}s, just like the
+	 * {@code Installer} does.
+	 *
+	 * @throws IOException
+	 */
+	private void stageForUninstall() throws IOException {
+		try {
+			// stageForUninstall() changes the status, i.e. the collection
+			List<Object> toUninstall = new ArrayList<Object>();
+			for (Object file : Adapter.<Iterable<Object>>invoke(files, "toUninstall"))
+				toUninstall.add(file);
+			for (Object file : toUninstall)
+				Adapter.invoke(file, "stageForUninstall", files);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw new IOException("Could not stage files for uninstalling: " + cause);
+		} catch (Exception e) {
+			throw new IOException("Could not stage files for uninstalling: " + e);
+		}
+	}
+
+	/**
+	 * Make sure that the previous version of a renamed file is removed.
+	 *
+	 * When a file's name changed, e.g. because a versioned <i>.jar</i> file
+	 * was updated, {@code moveUpdatedIntoPlace()} deletes the old file if it
+	 * finds a zero-length file of the same name in <i>update/</i>.
+	 *
+	 * @param file
+	 *            the {@code FileObject} to install
+	 * @throws IOException
+	 */
+	private void markRenamed(Object file) throws IOException {
+		String filename, localFilename;
+		try {
+			filename = Adapter.get(file, "filename");
+			localFilename = Adapter.get(file, "localFilename");
+		} catch (Exception e) {
+			throw new IOException("Could not inspect " + file + ": " + e);
+		}
+		if (localFilename == null || localFilename.equals(filename))
+			return;
+		File marker = new File(new File(ijDir, "update"), localFilename);
+		File parent = marker.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Could not make directory " + parent);
+		new FileOutputStream(marker).close();
+	}
+
+	/**
+	 * Install a launcher.
+	 *
+	 * A launcher cannot be replaced while it is running on Windows, so just
+	 * like the {@code Installer}, we move the current one out of the way to
+	 * <i>.old</i> (<i>.old.exe</i> on Windows) and install the new one
+	 * directly, not via the <i>update/</i> directory. Only a verified download
+	 * is moved into place.
+	 *
+	 * @param filename
+	 *            the file name
+	 * @param downloaded
+	 *            the verified download in the <i>update/</i> directory
+	 * @throws IOException
+	 */
+	private void installExecutable(String filename, File downloaded) throws IOException {
+		File target = new File(ijDir, filename);
+		if (target.exists()) {
+			String oldName = target.getPath() + ".old";
+			if (oldName.endsWith(".exe.old"))
+				oldName = oldName.substring(0, oldName.length() - 8) + ".old.exe";
+			File old = new File(oldName);
+			if (old.exists() && !old.delete())
+				throw new IOException("Could not remove " + old);
+			if (!target.renameTo(old))
+				throw new IOException("Could not move " + target + " out of the way");
+		}
+		File parent = target.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Could not make directory " + parent);
+		if (!downloaded.renameTo(target))
+			throw new IOException("Could not move " + downloaded + " to " + target);
+		if (!target.setExecutable(true, false))
+			throw new IOException("Could not make " + target + " executable");
+	}
+
+	/**
+	 * Download and verify a single file, retrying if necessary.
+	 *
+	 * If possible, the checksum is computed while the file streams in. If
+	 * that is not possible, or if it does not match (e.g. for a <i>.jar</i>
+	 * file {@link JarDigest} does not support), the file is read back and
+	 * checksummed by the {@link Adapter}.
+	 *
+	 * @param filename
+	 *            the file name
+	 * @param checksum
+	 *            the expected checksum
+	 * @param size
+	 *            the expected size, or -1 if unknown
+	 * @param url
+	 *            the URL to download
+	 * @param saveTo
+	 *            the destination
+	 * @param item
+	 *            the progress of this file
+	 * @return the number of bytes downloaded
+	 * @throws IOException
+	 */
+	private long download(String filename, String checksum, long size, URL url, File saveTo, Item item) throws IOException {
+		IOException last = null;
+		for (int attempt = 1; attempt <= attempts; attempt++) try {
+			Downloader.Verification verification = adapter.canDigestWhileDownloading(filename) ?
+				Downloader.Verification.checksum(filename, null, size) :
+				size < 0 ? null : Downloader.Verification.size(size);
+			long bytes = Downloader.download(url, saveTo, item, verification);
+			if (verification != null && checksum.equals(verification.getChecksum()))
+				return bytes;
+			String actual = digest(filename, saveTo);
+			if (!actual.equals(checksum)) {
+				saveTo.delete();
+				throw new IOException("Checksum mismatch for " + filename + ": expected " + checksum + ", got " + actual);
+			}
+			return bytes;
+		} catch (IOException e) {
+			last = e;
+			status("Attempt " + attempt + " of " + attempts + " to download " + filename + " failed: " + e.getMessage());
+		}
+		throw last;
+	}
+
+	/**
+	 * Try to rebuild a <i>.jar</i> file from the installed version and a
+	 * delta.
+	 *
+	 * @param file
+	 *            the {@code FileObject}
+	 * @param filename
+	 *            the file name
+	 * @param checksum
+	 *            the expected checksum
+	 * @param url
+	 *            the URL of the complete file
+	 * @param saveTo
+	 *            the destination
+	 * @return the number of bytes downloaded, or -1 if no delta could be
+	 *         applied
+	 */
+	private long installDelta(Object file, String filename, String checksum, URL url, File saveTo) {
+		File delta = new File(saveTo.getPath() + ".delta");
+		try {
+			String localFilename = Adapter.invoke(file, "getLocalFilename", false);
+			File local = localFilename == null ? null : new File(ijDir, localFilename);
+			if (local == null || !local.isFile())
+				return -1;
+			String localChecksum = adapter.getDigest(localFilename, local);
+			long bytes = Downloader.download(new URL(Delta.getURL(url.toString(), localChecksum)), delta, null);
+			Delta.apply(local, delta, saveTo);
+			if (adapter.getDigest(filename, saveTo).equals(checksum))
+				return bytes;
+			status("Delta for " + filename + " did not yield the expected checksum");
+			saveTo.delete();
+		} catch (Exception e) {
+			// no delta available; download the complete file
+		} finally {
+			delta.delete();
+		}
+		return -1;
+	}
+
+	private static long getSize(Object file) {
+		try {
+			Number size = Adapter.get(file, "filesize");
+			return size == null || size.longValue() <= 0 ? -1 : size.longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private String digest(String filename, File file) throws IOException {
+		try {
+			return adapter.getDigest(filename, file);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Could not checksum " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Counts the bytes of a single file as they arrive.
+	 */
+	private class Item implements Downloader.Listener {
+		private final Object file;
+		private final long size;
+		private long bytes;
+
+		Item(Object file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+
+		@Override
+		public void transferred(long count) {
+			itemTransferred(this, count);
+		}
+	}
+
+	/**
+	 * Record the bytes of a file's current download attempt.
+	 *
+	 * A retry starts counting from zero again, undoing the failed attempt's
+	 * contribution to the overall count.
+	 */
+	private synchronized void itemTransferred(Item item, long count) {
+		transferred += count - item.bytes;
+		item.bytes = count;
+		progress("setCount", scale(Math.min(transferred, totalBytes)), scale(totalBytes));
+	}
+
+	private synchronized void itemDone(Item item) {
+		// shared files and deltas transfer fewer bytes than the file has
+		if (item.size > 0)
+			itemTransferred(item, item.size);
+		progress("itemDone", item.file);
+	}
+
+	private int scale(long bytes) {
+		return (int)(totalBytes > Integer.MAX_VALUE ? bytes >> 10 : bytes);
+	}
+
+	private void status(String message) {
+		adapter.getUI().showStatus(message);
+	}
+
+	/**
+	 * Report to the progress object, serializing the calls from all workers.
+	 */
+	private synchronized void progress(String methodName, Object... parameters) {
+		try {
+			Adapter.invoke(progress, methodName, parameters);
+		} catch (Exception e) {
+			// progress reporting is best effort
+		}
+	}
+}
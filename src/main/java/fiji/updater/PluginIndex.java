@@ -0,0 +1,373 @@
+package fiji.updater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A persistent index of the menu entries provided by the <i>.jar</i> files.
+ *
+ * ImageJ 1.x plugins declare their menu entries in a <i>plugins.config</i>
+ * file inside the <i>.jar</i> file. To show which plugins a file provides, we
+ * would have to open every single <i>.jar</i> file in <i>plugins/</i> and
+ * <i>jars/</i>, which is slow on large installations. Instead, this index
+ * opens the files on several threads, reading only the zip central directory
+ * and the <i>plugins.config</i> entry, and remembers the result.
+ *
+ * The menu entries are keyed by a checksum of the central directory (the
+ * names, sizes and CRC-32s of all entries), so that a <i>.jar</i> file that
+ * was merely touched or copied is not parsed again. The index lives next to
+ * <i>db.xml.gz</i> in the ImageJ root directory, as an {@link IndexFile} with
+ * one tab-separated line per record, like the {@link ChecksumIndex}. Files
+ * whose size and modification time did not change are not opened at all.
+ */
+class PluginIndex {
+	final static String FILE_NAME = "db.plugins";
+	final static String[] DIRECTORIES = { "plugins", "jars" };
+	private final static String HEADER = "# Fiji Updater plugin index v1";
+	private final static int THRESHOLD = 16;
+
+	/**
+	 * A single menu entry, as declared in <i>plugins.config</i>.
+	 */
+	static class Plugin {
+		final String menuPath, label, command;
+
+		Plugin(String menuPath, String label, String command) {
+			this.menuPath = menuPath;
+			this.label = label;
+			this.command = command;
+		}
+
+		@Override
+		public String toString() {
+			return menuPath + ">" + label + " (" + command + ")";
+		}
+	}
+
+	/**
+	 * What we know about a single <i>.jar</i> file.
+	 */
+	private static class Jar {
+		final String path, checksum;
+		final long size, lastModified;
+
+		Jar(String path, long size, long lastModified, String checksum) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+		}
+	}
+
+	private final File ijDir, file;
+	private final UI ui;
+	private final Map<String, Jar> jars = new ConcurrentHashMap<String, Jar>();
+	private final Map<String, List<Plugin>> plugins = new ConcurrentHashMap<String, List<Plugin>>();
+	private boolean dirty;
+
+	/**
+	 * Read the index of a given ImageJ root directory.
+	 *
+	 * A missing or corrupt index yields an empty index.
+	 *
+	 * @param ijDir
+	 *            the ImageJ root directory
+	 * @param ui
+	 *            where to report problems with the index or the <i>.jar</i>
+	 *            files
+	 */
+	PluginIndex(File ijDir, UI ui) {
+		this.ijDir = ijDir;
+		this.ui = ui;
+		file = new File(ijDir, FILE_NAME);
+		if (file.exists()) try {
+			read();
+		} catch (IOException e) {
+			ui.showStatus("Rebuilding corrupt plugin index " + file + ": " + e.getMessage());
+			jars.clear();
+			plugins.clear();
+			dirty = true;
+		}
+	}
+
+	private void read() throws IOException {
+		Map<String, List<Plugin>> lists = new TreeMap<String, List<Plugin>>();
+		for (String line : IndexFile.read(file, HEADER)) {
+			String[] fields = line.split("\t", -1);
+			if (fields.length == 5 && fields[0].equals("jar")) try {
+				jars.put(fields[1], new Jar(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]));
+				if (!lists.containsKey(fields[4]))
+					lists.put(fields[4], new ArrayList<Plugin>());
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid line: " + line);
+			}
+			else if (fields.length == 5 && fields[0].equals("plugin")) {
+				List<Plugin> list = lists.get(fields[1]);
+				if (list == null)
+					throw new IOException("Plugin of unknown file: " + line);
+				list.add(new Plugin(fields[2], fields[3], fields[4]));
+			}
+			else
+				throw new IOException("Invalid line: " + line);
+		}
+		plugins.putAll(lists);
+	}
+
+	/**
+	 * Bring the index up to date.
+	 *
+	 * Only <i>.jar</i> files that are new, or whose size or modification time
+	 * changed, are opened, on the given number of threads. The index is
+	 * saved if it changed; as the index is only a cache, failing to save it
+	 * (e.g. in a read-only installation) is reported, but not an error.
+	 *
+	 * @param threads
+	 *            the number of worker threads
+	 * @return the menu entries of all <i>.jar</i> files, sorted by path
+	 */
+	SortedMap<String, List<Plugin>> update(int threads) {
+		List<String> paths = new ArrayList<String>();
+		for (String directory : DIRECTORIES)
+			list(directory, paths);
+
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.invoke(new Scan(paths, 0, paths.size()));
+		} finally {
+			pool.shutdown();
+		}
+
+		if (jars.keySet().retainAll(paths))
+			dirty = true;
+		Map<String, Boolean> used = new TreeMap<String, Boolean>();
+		for (Jar jar : jars.values())
+			used.put(jar.checksum, Boolean.TRUE);
+		if (plugins.keySet().retainAll(used.keySet()))
+			dirty = true;
+		try {
+			save();
+		} catch (IOException e) {
+			ui.showStatus("Could not save the plugin index " + file + ": " + e.getMessage());
+		}
+
+		SortedMap<String, List<Plugin>> result = new TreeMap<String, List<Plugin>>();
+		for (Jar jar : jars.values())
+			result.put(jar.path, plugins.get(jar.checksum));
+		return result;
+	}
+
+	private void list(String directory, List<String> result) {
+		String[] list = new File(ijDir, directory).list();
+		if (list == null)
+			return;
+		for (String name : list) {
+			if (name.startsWith("."))
+				continue;
+			String path = directory + "/" + name;
+			if (name.endsWith(".jar"))
+				result.add(path);
+			else if (new File(ijDir, path).isDirectory())
+				list(path, result);
+		}
+	}
+
+	/**
+	 * Indexes a range of files, splitting the range until it is small enough.
+	 */
+	private class Scan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<String> paths;
+		private final int from, to;
+
+		Scan(List<String> paths, int from, int to) {
+			this.paths = paths;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > THRESHOLD) {
+				int middle = (from + to) / 2;
+				invokeAll(new Scan(paths, from, middle), new Scan(paths, middle, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				String path = paths.get(i);
+				File jar = new File(ijDir, path);
+				Jar known = jars.get(path);
+				if (known != null && known.size == jar.length() && known.lastModified == jar.lastModified())
+					continue;
+				try {
+					index(path, jar);
+				} catch (IOException e) {
+					ui.showStatus("Could not index " + path + ": " + e.getMessage());
+					if (jars.remove(path) != null)
+						setDirty();
+				}
+			}
+		}
+	}
+
+	private void index(String path, File file) throws IOException {
+		long size = file.length(), lastModified = file.lastModified();
+		ZipFile zip = new ZipFile(file);
+		try {
+			String checksum = checksum(zip);
+			if (!plugins.containsKey(checksum)) {
+				ZipEntry entry = zip.getEntry("plugins.config");
+				List<Plugin> list = Collections.emptyList();
+				if (entry != null) {
+					InputStream in = zip.getInputStream(entry);
+					try {
+						list = parse(in);
+					} finally {
+						in.close();
+					}
+				}
+				plugins.put(checksum, list);
+			}
+			jars.put(path, new Jar(path, size, lastModified, checksum));
+			setDirty();
+		} finally {
+			zip.close();
+		}
+	}
+
+	private synchronized void setDirty() {
+		dirty = true;
+	}
+
+	/**
+	 * Compute a checksum of a <i>.jar</i> file's central directory.
+	 *
+	 * This covers the names, sizes and CRC-32s of all entries, i.e. the
+	 * contents, but not the timestamps. Only the central directory needs to
+	 * be read.
+	 *
+	 * @param zip
+	 *            the opened <i>.jar</i> file
+	 * @return the checksum
+	 * @throws IOException
+	 */
+	static String checksum(ZipFile zip) throws IOException {
+		List<ZipEntry> entries = new ArrayList<ZipEntry>();
+		for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); )
+			entries.add(e.nextElement());
+		Collections.sort(entries, new Comparator<ZipEntry>() {
+			@Override
+			public int compare(ZipEntry a, ZipEntry b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		MessageDigest digest = FileDigest.newDigest(null);
+		for (ZipEntry entry : entries)
+			digest.update((entry.getName() + "\t" + entry.getSize() + "\t" + entry.getCrc() + "\n").getBytes("UTF-8"));
+		return FileDigest.toHex(digest.digest());
+	}
+
+	/**
+	 * Parse a <i>plugins.config</i> file.
+	 *
+	 * Every non-empty line that is not a comment has the form
+	 * <code>Menu&gt;Submenu, "Label", class.Name("argument")</code>.
+	 * Malformed lines are skipped.
+	 *
+	 * @param in
+	 *            the contents
+	 * @return the menu entries
+	 * @throws IOException
+	 */
+	static List<Plugin> parse(InputStream in) throws IOException {
+		List<Plugin> result = new ArrayList<Plugin>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		for (;;) {
+			String line = reader.readLine();
+			if (line == null)
+				break;
+			line = line.trim();
+			if (line.equals("") || line.startsWith("#"))
+				continue;
+			int comma = line.indexOf(',');
+			int open = line.indexOf('"', comma + 1);
+			int close = open < 0 ? -1 : line.indexOf('"', open + 1);
+			int comma2 = close < 0 ? -1 : line.indexOf(',', close + 1);
+			if (comma < 0 || comma2 < 0)
+				continue;
+			result.add(new Plugin(clean(line.substring(0, comma)), clean(line.substring(open + 1, close)),
+				clean(line.substring(comma2 + 1))));
+		}
+		return result;
+	}
+
+	private static String clean(String value) {
+		return value.replace('\t', ' ').trim();
+	}
+
+	/**
+	 * Write the index if it changed.
+	 *
+	 * See {@link IndexFile#write}.
+	 *
+	 * @throws IOException
+	 */
+	void save() throws IOException {
+		if (!dirty)
+			return;
+		List<String> lines = new ArrayList<String>();
+		for (Jar jar : jars.values())
+			lines.add("jar\t" + jar.path + "\t" + jar.size + "\t" + jar.lastModified + "\t" + jar.checksum);
+		for (Map.Entry<String, List<Plugin>> entry : plugins.entrySet())
+			for (Plugin plugin : entry.getValue())
+				lines.add("plugin\t" + entry.getKey() + "\t" + plugin.menuPath + "\t" + plugin.label + "\t" + plugin.command);
+		IndexFile.write(file, HEADER, lines);
+		dirty = false;
+	}
+
+	/**
+	 * List the menu entries of all <i>.jar</i> files.
+	 *
+	 * Usage: <code>list-plugins [&lt;ImageJ root&gt;]</code>; the ImageJ root
+	 * directory defaults to the <i>ij.dir</i> system property. The number of
+	 * threads is taken from the <i>fiji.updater.threads</i> system property.
+	 *
+	 * @param args
+	 *            the optional ImageJ root directory
+	 * @return the exit code
+	 */
+	static int main(String[] args) {
+		String ijDir = args.length > 0 ? args[0] : System.getProperty("ij.dir");
+		if (ijDir == null || args.length > 1) {
+			System.err.println("Usage: list-plugins [<ImageJ root>]");
+			return 1;
+		}
+		int threads = Integer.getInteger(Adapter.THREADS_PROPERTY, 0);
+		if (threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		for (Map.Entry<String, List<Plugin>> entry : new PluginIndex(new File(ijDir), new StderrUI()).update(threads).entrySet()) {
+			if (entry.getValue().isEmpty())
+				continue;
+			System.out.println(entry.getKey());
+			for (Plugin plugin : entry.getValue())
+				System.out.println("\t" + plugin);
+		}
+		return 0;
+	}
+}
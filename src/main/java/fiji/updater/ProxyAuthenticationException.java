@@ -0,0 +1,15 @@
+package fiji.updater;
+
+/**
+ * Thrown when the up-to-date check needs to authenticate with a proxy.
+ *
+ * This is a problem with the network, not with the updater generation that
+ * reported it; see {@link UpdaterGeneration}.
+ */
+class ProxyAuthenticationException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	ProxyAuthenticationException() {
+		super("TODO: authenticate proxy with the configured user/pass pair");
+	}
+}
@@ -0,0 +1,410 @@
+package fiji.updater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Download and cache the known-good <i>.jar</i> files of the remote ImageJ
+ * updater.
+ *
+ * When the ImageJ updater is not available locally, {@link Adapter} falls
+ * back to the files listed in {@link Adapter#JARS}, {@link Adapter#VERSIONS}
+ * and {@link Adapter#TIMESTAMPS}. Rather than letting a URLClassLoader fetch
+ * the classes lazily over HTTP, one connection at a time, we download all of
+ * them concurrently up front and verify them before use.
+ *
+ * The files are kept in a persistent cache directory, keyed by name, version
+ * and timestamp, together with the SHA-1 of their contents, so that later
+ * runs do not need to access the network at all.
+ */
+class RemoteJars {
+	/**
+	 * The system property specifying the cache directory.
+	 */
+	final static String CACHE_PROPERTY = "fiji.updater.cache";
+
+	/**
+	 * How long to keep files no longer needed by this version of the Fiji
+	 * Updater (another version might still use them).
+	 */
+	final static long MAX_AGE = 30l * 24 * 60 * 60 * 1000;
+
+	private final String prefix;
+	private final File cacheDir;
+
+	/**
+	 * Construct a new downloader.
+	 *
+	 * @param prefix
+	 *            the URL prefix to download the files from
+	 * @param cacheDir
+	 *            the cache directory
+	 */
+	RemoteJars(String prefix, File cacheDir) {
+		this.prefix = prefix;
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Get the cache directory.
+	 *
+	 * Unless overridden by the <i>fiji.updater.cache</i> system property, this
+	 * is <i>.imagej/updater-cache/</i> in the user's home directory.
+	 *
+	 * @return the cache directory
+	 */
+	static File getCacheDirectory() {
+		String path = System.getProperty(CACHE_PROPERTY);
+		if (path != null)
+			return new File(path);
+		return new File(new File(System.getProperty("user.home"), ".imagej"), "updater-cache");
+	}
+
+	/**
+	 * Get the file name of the i-th <i>.jar</i> file.
+	 *
+	 * @param i
+	 *            the index into {@link Adapter#JARS}
+	 * @return the file name, including the version
+	 */
+	static String getFileName(int i) {
+		return Adapter.JARS[i] + Adapter.VERSIONS[i] + ".jar";
+	}
+
+	/**
+	 * Get the URL of the i-th <i>.jar</i> file on the update site.
+	 *
+	 * @param i
+	 *            the index into {@link Adapter#JARS}
+	 * @return the URL
+	 */
+	String getURL(int i) {
+		return prefix + getFileName(i) + "-" + Adapter.TIMESTAMPS[i];
+	}
+
+	/**
+	 * Get the cached copy of the i-th <i>.jar</i> file.
+	 *
+	 * @param i
+	 *            the index into {@link Adapter#JARS}
+	 * @return the file in the cache directory
+	 */
+	File getCachedFile(int i) {
+		return new File(cacheDir, getFileName(i) + "-" + Adapter.TIMESTAMPS[i]);
+	}
+
+	private static File getChecksumFile(File file) {
+		return new File(file.getPath() + ".sha1");
+	}
+
+	/**
+	 * Determine whether a cached file is valid.
+	 *
+	 * A file is valid if the SHA-1 of its contents matches the one recorded
+	 * when it was downloaded.
+	 *
+	 * @param file
+	 *            the cached file
+	 * @return whether the file can be used
+	 */
+	static boolean isValid(File file) {
+		File checksum = getChecksumFile(file);
+		if (!file.isFile() || !checksum.isFile())
+			return false;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(checksum));
+			try {
+				return FileDigest.digest(file).equals(reader.readLine());
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get the cached <i>.jar</i> files.
+	 *
+	 * @return the cached files, in the order of {@link Adapter#JARS}, or
+	 *         <i>null</i> unless all of them are cached and valid
+	 */
+	File[] getCached() {
+		File[] result = new File[Adapter.JARS.length];
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < result.length; i++) {
+			result[i] = getCachedFile(i);
+			if (!isValid(result[i]))
+				return null;
+			result[i].setLastModified(now);
+		}
+		return result;
+	}
+
+	/**
+	 * Remove files from the cache that have not been used for a while.
+	 *
+	 * The files needed by this version of the Fiji Updater are never evicted.
+	 * Files that are not needed are evicted when they have not been used for
+	 * {@link #MAX_AGE} milliseconds, as are stale partial downloads.
+	 */
+	void evict() {
+		File[] list = cacheDir.listFiles();
+		if (list == null)
+			return;
+		Set<String> keep = new HashSet<String>();
+		for (int i = 0; i < Adapter.JARS.length; i++) {
+			File file = getCachedFile(i);
+			keep.add(file.getName());
+			keep.add(getChecksumFile(file).getName());
+		}
+		long cutoff = System.currentTimeMillis() - MAX_AGE;
+		for (File file : list)
+			if (!keep.contains(file.getName()) && file.isFile() && file.lastModified() < cutoff)
+				file.delete();
+	}
+
+	/**
+	 * Download all <i>.jar</i> files concurrently into the cache.
+	 *
+	 * Files that are already cached and valid are not downloaded again.
+	 *
+	 * @return the cached files, in the order of {@link Adapter#JARS}
+	 * @throws IOException
+	 */
+	File[] download() throws IOException {
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs())
+			throw new IOException("Could not make directory " + cacheDir);
+		ExecutorService executor = Workers.newPool(Adapter.JARS.length, "Updater download");
+		try {
+			List<Future<File>> futures = new ArrayList<Future<File>>();
+			for (int i = 0; i < Adapter.JARS.length; i++) {
+				final int index = i;
+				futures.add(executor.submit(new Callable<File>() {
+					@Override
+					public File call() throws IOException {
+						File file = getCachedFile(index);
+						if (!isValid(file))
+							writeChecksum(file, download(new URL(getURL(index)), file));
+						return file;
+					}
+				}));
+			}
+			// wait for all downloads, so that none writes to the cache after we return
+			File[] result = new File[futures.size()];
+			IOException exception = null;
+			for (int i = 0; i < result.length; i++) try {
+				result[i] = Workers.get(futures.get(i));
+			} catch (IOException e) {
+				if (exception == null)
+					exception = e;
+			}
+			if (exception != null)
+				throw exception;
+			return result;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Download a single <i>.jar</i> file and verify it.
+	 *
+	 * The file is verified, and the SHA-1 of its contents computed, in the
+	 * same pass that writes it to a temporary file in the cache directory.
+	 * Only a verified file is moved into place, atomically, so that other
+	 * processes sharing the cache never see a partial or corrupt file.
+	 *
+	 * @param url
+	 *            the URL to download
+	 * @param file
+	 *            the destination
+	 * @return the SHA-1 of the contents
+	 * @throws IOException
+	 */
+	static String download(URL url, File file) throws IOException {
+		File tmp = File.createTempFile(file.getName() + "-", ".part", file.getParentFile());
+		boolean success = false;
+		try {
+			URLConnection connection = Validators.open(url);
+			long expected = connection.getContentLengthLong();
+			CopyingInputStream in = new CopyingInputStream(connection.getInputStream(), new FileOutputStream(tmp));
+			try {
+				verify(in);
+				// the central directory
+				byte[] buffer = new byte[65536];
+				while (in.read(buffer) >= 0)
+					; // copy
+			} finally {
+				in.close();
+			}
+			if (expected >= 0 && in.count != expected)
+				throw new IOException("Short read from " + url + ": " + in.count + " instead of " + expected + " bytes");
+			moveAtomically(tmp, file);
+			success = true;
+			return FileDigest.toHex(in.digest.digest());
+		} finally {
+			if (!success)
+				tmp.delete();
+		}
+	}
+
+	/**
+	 * Record the SHA-1 of a cached file.
+	 *
+	 * Like the file itself, the checksum is written to a temporary file first
+	 * which is then moved into place atomically.
+	 *
+	 * @param file
+	 *            the cached file
+	 * @param checksum
+	 *            the SHA-1 of its contents
+	 * @throws IOException
+	 */
+	private static void writeChecksum(File file, String checksum) throws IOException {
+		File tmp = File.createTempFile(file.getName() + "-", ".sha1", file.getParentFile());
+		try {
+			Writer writer = new FileWriter(tmp);
+			try {
+				writer.write(checksum + "\n");
+			} finally {
+				writer.close();
+			}
+			moveAtomically(tmp, getChecksumFile(file));
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private static void moveAtomically(File source, File target) throws IOException {
+		Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Verify a <i>.jar</i> file.
+	 *
+	 * There are no checksums of the known-good <i>.jar</i> files we could
+	 * compare against, but every zip entry carries a CRC-32 that is verified
+	 * when reading the entry to its end. Note that only
+	 * {@link ZipInputStream} verifies the CRC-32 of <i>stored</i> entries;
+	 * {@link java.util.zip.ZipFile} checks only deflated ones.
+	 *
+	 * @param file
+	 *            the file to verify
+	 * @throws IOException
+	 */
+	static void verify(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			verify(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Verify the entries of a <i>.jar</i> file.
+	 *
+	 * The stream is read up to the end of the last entry; the caller is
+	 * responsible for closing it.
+	 *
+	 * @param in
+	 *            the contents of the <i>.jar</i> file
+	 * @throws IOException
+	 */
+	private static void verify(InputStream in) throws IOException {
+		ZipInputStream zip = new ZipInputStream(in);
+		byte[] buffer = new byte[65536];
+		int count = 0;
+		while (zip.getNextEntry() != null) {
+			while (zip.read(buffer) >= 0)
+				; // the CRC-32 is checked at the end of the entry
+			count++;
+		}
+		if (count == 0)
+			throw new ZipException("No entries");
+	}
+
+	/**
+	 * Copies everything read through it to an output stream, and computes
+	 * the SHA-1 of it.
+	 */
+	private static class CopyingInputStream extends FilterInputStream {
+		private final OutputStream out;
+		private final MessageDigest digest;
+		private long count;
+
+		CopyingInputStream(InputStream in, OutputStream out) throws IOException {
+			super(in);
+			this.out = out;
+			digest = FileDigest.newDigest(null);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				out.write(b);
+				digest.update((byte)b);
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int result = super.read(buffer, offset, length);
+			if (result > 0) {
+				out.write(buffer, offset, result);
+				digest.update(buffer, offset, result);
+				count += result;
+			}
+			return result;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// everything needs to be copied
+			byte[] buffer = new byte[(int)Math.min(n, 65536)];
+			int result = read(buffer, 0, buffer.length);
+			return Math.max(result, 0);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Verified downloads shared between several ImageJ root directories.
+ *
+ * When updating many ImageJ installations, most of them need the very same
+ * files. This class makes sure that every file is downloaded only once: the
+ * first installer needing a file downloads it into a shared directory, keyed
+ * by its checksum, and all installers (including concurrent ones, which wait
+ * for the download) hard-link it from there into their <i>update/</i>
+ * directory. If hard links are not supported, e.g. because the directories
+ * live on different file systems, the file is copied instead.
+ *
+ * The shared directory is either a temporary one, for the duration of a
+ * {@link Fleet} run, or the host-wide store specified by the
+ * <i>fiji.updater.store</i> system property. Files enter the store via an
+ * atomic rename, so that several processes can share it safely.
+ *
+ * Files in the store are not made read-only: hard-linked installs share the
+ * file's permissions along with its contents, and would become read-only,
+ * too. Instead, as anybody writing to an install could modify the shared
+ * contents, every file is verified (size and checksum) when it is used for
+ * the first time by a given instance of this class; a file that fails the
+ * verification is downloaded again.
+ */
+class SharedArtifacts {
+	/**
+	 * The system property specifying the directory of the host-wide store.
+	 */
+	final static String STORE_PROPERTY = "fiji.updater.store";
+
+	/**
+	 * Downloads and verifies a file.
+	 */
+	interface Download {
+		/**
+		 * Download and verify the file.
+		 *
+		 * @param file
+		 *            the destination
+		 * @return the number of bytes downloaded
+		 * @throws IOException
+		 */
+		long to(File file) throws IOException;
+
+		/**
+		 * Verify a file that is already in the shared directory.
+		 *
+		 * @param file
+		 *            the shared file
+		 * @throws IOException
+		 *             if the file does not have the expected size or checksum
+		 */
+		void verify(File file) throws IOException;
+	}
+
+	private final File directory;
+	private final ConcurrentMap<String, FutureTask<Long>> downloads = new ConcurrentHashMap<String, FutureTask<Long>>();
+
+	/**
+	 * Construct a new set of shared artifacts.
+	 *
+	 * @param directory
+	 *            the directory to keep the artifacts in
+	 */
+	SharedArtifacts(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Get the host-wide store, if configured.
+	 *
+	 * @return the store, or <i>null</i>
+	 */
+	static SharedArtifacts getStore() {
+		String path = System.getProperty(STORE_PROPERTY);
+		return path == null ? null : new SharedArtifacts(new File(path));
+	}
+
+	/**
+	 * Get a verified copy of a file.
+	 *
+	 * @param checksum
+	 *            the checksum of the file
+	 * @param saveTo
+	 *            the destination
+	 * @param download
+	 *            the download to use if the file is not yet available
+	 * @return the number of bytes downloaded for this request (0 if the file
+	 *         was shared)
+	 * @throws IOException
+	 */
+	long get(final String checksum, File saveTo, final Download download) throws IOException {
+		final File file = new File(directory, checksum);
+		long bytes = 0;
+		FutureTask<Long> task = new FutureTask<Long>(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return fetch(checksum, file, download);
+			}
+		});
+		FutureTask<Long> existing = downloads.putIfAbsent(checksum, task);
+		try {
+			if (existing == null) {
+				task.run();
+				bytes = task.get();
+			}
+			else
+				existing.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			// let the next request retry rather than fail for good
+			if (existing == null)
+				downloads.remove(checksum, task);
+			throw Workers.unwrap(e);
+		}
+		link(file, saveTo);
+		return bytes;
+	}
+
+	/**
+	 * Make sure that a verified file is in the shared directory.
+	 *
+	 * A file that is already there is verified; if that fails, it is
+	 * replaced.
+	 *
+	 * @return the number of bytes downloaded
+	 */
+	private long fetch(String checksum, File file, Download download) throws IOException {
+		if (file.isFile()) try {
+			download.verify(file);
+			return 0;
+		} catch (IOException e) {
+			// corrupt or modified via a hard link; replace it
+			Files.deleteIfExists(file.toPath());
+		}
+		return store(checksum, file, download);
+	}
+
+	/**
+	 * Download a file into the shared directory.
+	 *
+	 * The file is downloaded to a temporary file first, which is then renamed
+	 * atomically, so that other processes never see incomplete files.
+	 */
+	private long store(String checksum, File file, Download download) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+			throw new IOException("Could not make directory " + directory);
+		File tmp = File.createTempFile(checksum, ".tmp", directory);
+		try {
+			long bytes = download.to(tmp);
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				// another process might have stored the same file in the meantime
+				if (!file.isFile())
+					throw e;
+			}
+			return bytes;
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Hard-link a shared file to its destination, or copy it if that fails.
+	 *
+	 * @param file
+	 *            the shared file
+	 * @param saveTo
+	 *            the destination
+	 * @throws IOException
+	 */
+	private static void link(File file, File saveTo) throws IOException {
+		File parent = saveTo.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Could not make directory " + parent);
+		Files.deleteIfExists(saveTo.toPath());
+		try {
+			Files.createLink(saveTo.toPath(), file.toPath());
+			return;
+		} catch (IOException e) {
+			// e.g. different file systems
+		} catch (UnsupportedOperationException e) {
+			// the file system does not support hard links
+		}
+		Files.copy(file.toPath(), saveTo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Delete the shared directory.
+	 */
+	void dispose() {
+		File[] list = directory.listFiles();
+		if (list != null)
+			for (File file : list)
+				file.delete();
+		directory.delete();
+	}
+}
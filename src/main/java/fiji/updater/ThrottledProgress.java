@@ -0,0 +1,137 @@
+package fiji.updater;
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Locale;
+
+/**
+ * A progress reporter for headless runs that coalesces updates.
+ *
+ * The ImageJ updater's {@code StderrProgress} prints every single change,
+ * which floods the logs of continuous integration jobs updating thousands of
+ * files and spends real time on synchronous console output. This reporter
+ * records every change, but prints the current state at most once per
+ * interval (the <i>fiji.updater.progressInterval</i> system property, in
+ * milliseconds), and always prints a summary when a phase is done.
+ *
+ * Setting the <i>fiji.updater.progress</i> system property to <i>plain</i>
+ * enables this reporter; setting it to <i>ndjson</i> makes it print one JSON
+ * object per line instead, with the fields <i>phase</i>, <i>file</i>,
+ * <i>count</i>, <i>total</i>, <i>bytes</i>, <i>elapsed</i> (in seconds) and,
+ * for summaries, <i>done</i>.
+ *
+ * Since we cannot link to the ImageJ updater, the {@code Progress} interface
+ * is implemented via a {@link Proxy}.
+ */
+class ThrottledProgress implements InvocationHandler {
+	final static String PROGRESS_PROPERTY = "fiji.updater.progress";
+	final static String INTERVAL_PROPERTY = "fiji.updater.progressInterval";
+
+	private final PrintStream out;
+	private final boolean json;
+	private final long interval, start = System.nanoTime();
+	private long lastEmit = -1;
+	private String title;
+	private Object item;
+	private int count, total, items;
+	private long bytes, itemBytes;
+	private boolean pending;
+
+	ThrottledProgress(PrintStream out, boolean json, long interval) {
+		this.out = out;
+		this.json = json;
+		this.interval = interval;
+	}
+
+	/**
+	 * Determine whether to use this reporter instead of the updater's.
+	 *
+	 * @return whether the <i>fiji.updater.progress</i> property asks for it
+	 */
+	static boolean isEnabled() {
+		String mode = System.getProperty(PROGRESS_PROPERTY);
+		return "plain".equals(mode) || "ndjson".equals(mode);
+	}
+
+	/**
+	 * Make a new reporter.
+	 *
+	 * @param progressInterface
+	 *            the ImageJ updater's {@code Progress} interface
+	 * @param out
+	 *            the stream to print to
+	 * @return the progress object
+	 */
+	static Object create(Class<?> progressInterface, PrintStream out) {
+		boolean json = "ndjson".equals(System.getProperty(PROGRESS_PROPERTY));
+		long interval = Long.getLong(INTERVAL_PROPERTY, 1000);
+		return Proxy.newProxyInstance(progressInterface.getClassLoader(), new Class<?>[] { progressInterface },
+			new ThrottledProgress(out, json, interval));
+	}
+
+	@Override
+	public synchronized Object invoke(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("setTitle")) {
+			if (title != null && pending)
+				emit(false);
+			title = String.valueOf(args[0]);
+			count = total = items = 0;
+			bytes = itemBytes = 0;
+			item = null;
+		}
+		else if (name.equals("setCount")) {
+			count = ((Number)args[0]).intValue();
+			total = ((Number)args[1]).intValue();
+		}
+		else if (name.equals("addItem")) {
+			item = args[0];
+			itemBytes = 0;
+		}
+		else if (name.equals("setItemCount"))
+			itemBytes = ((Number)args[0]).longValue();
+		else if (name.equals("itemDone")) {
+			items++;
+			bytes += itemBytes;
+			itemBytes = 0;
+		}
+		else if (name.equals("done")) {
+			emit(true);
+			return null;
+		}
+		else if (name.equals("toString"))
+			return "ThrottledProgress[" + title + "]";
+		else if (name.equals("hashCode"))
+			return System.identityHashCode(proxy);
+		else if (name.equals("equals"))
+			return proxy == args[0];
+		else
+			return null;
+
+		pending = true;
+		long now = System.nanoTime();
+		if (lastEmit < 0 || now - lastEmit >= interval * 1000000l)
+			emit(false);
+		return null;
+	}
+
+	private void emit(boolean done) {
+		lastEmit = System.nanoTime();
+		pending = false;
+		double elapsed = (lastEmit - start) / 1e9;
+		long currentBytes = bytes + itemBytes;
+		if (json) {
+			out.println("{\"phase\":" + Metrics.quote(title) + ",\"file\":" + Metrics.quote(item == null ? null : item.toString())
+				+ ",\"count\":" + (done ? Math.max(count, items) : count) + ",\"total\":" + total
+				+ ",\"bytes\":" + currentBytes + ",\"elapsed\":" + String.format(Locale.ROOT, "%.3f", elapsed)
+				+ (done ? ",\"done\":true" : "") + "}");
+		}
+		else if (done)
+			out.println(String.format("%s done: %d items, %d bytes, %.1fs", title, Math.max(count, items), currentBytes, elapsed));
+		else
+			out.println(String.format("[%.1fs] %s %d/%d%s", elapsed, title, count, total, item == null ? "" : " " + item));
+		out.flush();
+	}
+}
@@ -0,0 +1,165 @@
+package fiji.updater;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Serializes updaters working on the same ImageJ root directory.
+ *
+ * When many processes start at the same time on a shared installation (e.g.
+ * cluster jobs on an NFS-mounted Fiji), they would all rewrite
+ * <i>db.xml.gz</i> and download the same files into the same
+ * <i>update/</i> directory. This lock, a {@link FileLock} on the file
+ * <i>.updater.lock</i> in the ImageJ root directory, lets only one of them do
+ * the work; the others wait and can then reuse the result (see
+ * {@link #waited()}).
+ *
+ * The operating system releases the lock when its holder dies. On network
+ * file systems, however, locks can outlive their holders. Therefore, the
+ * holder touches the lock file regularly; if the waiting process does not
+ * see the lock file's modification time change for {@link #STALE}
+ * milliseconds, the lock is considered stale and the waiting process goes
+ * ahead without it. Only changes of the modification time are looked at,
+ * measured with the waiting process' own clock, as the clock of a file
+ * server can be off by far more than {@link #STALE}. The same happens after
+ * waiting for the time specified by the <i>fiji.updater.lockTimeout</i>
+ * system property (in seconds), and when the file system does not support
+ * locking at all.
+ */
+class UpdateLock {
+	final static String FILE_NAME = ".updater.lock";
+	final static String TIMEOUT_PROPERTY = "fiji.updater.lockTimeout";
+	private final static long DEFAULT_TIMEOUT = 30 * 60;
+	private final static long HEARTBEAT = 10000, STALE = 6 * HEARTBEAT, POLL = 500;
+
+	private final File file;
+	private RandomAccessFile raf;
+	private FileLock lock;
+	private Thread heartbeat;
+	private boolean waited;
+
+	private UpdateLock(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Acquire the lock for an ImageJ root directory, waiting if necessary.
+	 *
+	 * @param ijDir
+	 *            the ImageJ root directory
+	 * @param ui
+	 *            the user interface to report waiting to
+	 * @return the lock, to be {@link #release() released} when done
+	 * @throws IOException
+	 */
+	static UpdateLock acquire(File ijDir, UI ui) throws IOException {
+		UpdateLock result = new UpdateLock(new File(ijDir, FILE_NAME));
+		try {
+			result.acquire(ui);
+		} catch (IOException e) {
+			result.release();
+			throw e;
+		}
+		return result;
+	}
+
+	private void acquire(UI ui) throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		long timeout = 1000000000l * Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT);
+		long start = System.nanoTime();
+		long touched = file.lastModified(), touchSeen = start;
+		for (;;) {
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// held by another thread of this process
+				lock = null;
+			} catch (IOException e) {
+				ui.showStatus("Could not lock " + file + " (" + e.getMessage() + "); continuing without the lock");
+				return;
+			}
+			if (lock != null)
+				break;
+			if (!waited) {
+				ui.showStatus("Waiting for another updater working on " + file.getParent());
+				waited = true;
+			}
+			long now = System.nanoTime();
+			long lastModified = file.lastModified();
+			if (lastModified != touched) {
+				touched = lastModified;
+				touchSeen = now;
+			}
+			else if (now - touchSeen > STALE * 1000000l) {
+				ui.showStatus("Ignoring stale lock " + file);
+				return;
+			}
+			if (now - start > timeout) {
+				ui.showStatus("Timed out waiting for " + file + "; continuing without the lock");
+				return;
+			}
+			try {
+				Thread.sleep(POLL);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+		}
+
+		// record the owner, for diagnostics
+		raf.setLength(0);
+		raf.write((ManagementFactory.getRuntimeMXBean().getName() + "\n").getBytes("UTF-8"));
+		file.setLastModified(System.currentTimeMillis());
+		heartbeat = new Thread("Updater lock heartbeat") {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						Thread.sleep(HEARTBEAT);
+						file.setLastModified(System.currentTimeMillis());
+					}
+				} catch (InterruptedException e) {
+					// released
+				}
+			}
+		};
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+	}
+
+	/**
+	 * Determine whether another process held the lock when we tried to
+	 * acquire it.
+	 *
+	 * If so, that process most likely did the work already.
+	 *
+	 * @return whether we had to wait
+	 */
+	boolean waited() {
+		return waited;
+	}
+
+	/**
+	 * Release the lock.
+	 */
+	void release() {
+		if (heartbeat != null)
+			heartbeat.interrupt();
+		try {
+			if (lock != null)
+				lock.release();
+		} catch (IOException e) {
+			// the channel is closed below anyway
+		}
+		if (raf != null) try {
+			raf.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
@@ -3,13 +3,14 @@ package fiji.updater;
 import ij.IJ;
 import ij.plugin.PlugIn;
 
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
 import java.lang.reflect.Method;
-import java.net.URL;
-
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Updater implements PlugIn {
 	public final static String UPDATER_CLASS_NAME = "net.imagej.ui.swing.updater.ImageJUpdater";
@@ -18,6 +19,9 @@ public class Updater implements PlugIn {
 	public final static String OBSOLETE_UPTODATE_CLASS_NAME = "imagej.updater.core.UpToDate";
 	public final static String REMOTE_URL = "http://update.imagej.net/bootstrap.js";
 	public final static String RHINO_CLASS_NAME = "org.mozilla.javascript.Context";
+	public final static String CHECK_TIMEOUT_PROPERTY = "fiji.updater.checkTimeout";
+
+	private static FutureTask<Runnable> pendingCheck;
 
 	public void run(String arg) {
 		if ("check".equals(arg)) {
@@ -25,65 +29,193 @@ public class Updater implements PlugIn {
 			return;
 		}
 
+		Metrics.Phase phase = Metrics.get().start("updater");
 		try {
-			try {
+			runUpdater();
+		} finally {
+			phase.end();
+			Metrics.get().writeReport();
+		}
+	}
+
+	/**
+	 * Run the updater of the generation that works in this installation.
+	 * 
+	 * The generation is probed only once; see {@link UpdaterGeneration}. If
+	 * it fails after all, we fall back to the generations after it, ending
+	 * with the remote updater. A proxy asking for authentication is not such
+	 * a failure.
+	 */
+	private void runUpdater() {
+		UpdaterGeneration[] generations = UpdaterGeneration.values();
+		for (int i = UpdaterGeneration.get().ordinal(); i < generations.length; i++) try {
+			switch (generations[i]) {
+			case IJ2:
 				IJ2Updater.run();
+				return;
+			case OBSOLETE:
+				runObsoleteUpdater();
+				return;
+			case REMOTE:
+				runRemote();
+				return;
 			}
-			catch (Throwable t) {
-				t.printStackTrace();
-				@SuppressWarnings("unchecked")
-				final Class<Runnable> runnable = (Class<Runnable>)
-					IJ.getClassLoader().loadClass(OBSOLETE_UPDATER_CLASS_NAME);
-				runnable.newInstance().run();
-			}
+		} catch (ProxyAuthenticationException e) {
+			// the generation works, the network does not
+			e.printStackTrace();
+			return;
 		} catch (Throwable t) {
 			t.printStackTrace();
-			runRemote();
+			UpdaterGeneration.invalidate();
 		}
 	}
 
+	private void runObsoleteUpdater() throws Exception {
+		@SuppressWarnings("unchecked")
+		final Class<Runnable> runnable = (Class<Runnable>)
+			IJ.getClassLoader().loadClass(OBSOLETE_UPDATER_CLASS_NAME);
+		runnable.newInstance().run();
+	}
+
 	private void check() {
-		try {
-			try {
-				IJ2Updater.newCheck();
-				return;
+		checkQuietly().run();
+	}
+
+	/**
+	 * Perform the up-to-date check without interacting with the user.
+	 * 
+	 * Like {@link #runUpdater()}, this goes straight to the updater
+	 * generation that works in this installation, falling back to the
+	 * generations after it if it fails, but not when a proxy asks for
+	 * authentication.
+	 * 
+	 * @return the action presenting the result to the user
+	 */
+	private Runnable checkQuietly() {
+		UpdaterGeneration[] generations = UpdaterGeneration.values();
+		for (int i = UpdaterGeneration.get().ordinal(); i < generations.length; i++) try {
+			switch (generations[i]) {
+			case IJ2:
+				return IJ2Updater.check();
+			case OBSOLETE:
+				return checkObsolete();
+			case REMOTE:
+				return problem();
 			}
-			catch (Throwable t) {
-				t.printStackTrace();
-				final Class<?> clazz =
-						IJ.getClassLoader().loadClass(OBSOLETE_UPTODATE_CLASS_NAME);
-				final Method check = clazz.getMethod("check");
-				final Object result = check.invoke(null);
+		} catch (ProxyAuthenticationException e) {
+			// the generation works, the network does not
+			e.printStackTrace();
+			return problem();
+		} catch (Throwable t) {
+			t.printStackTrace();
+			UpdaterGeneration.invalidate();
+		}
+		return problem();
+	}
+
+	private Runnable checkObsolete() throws Exception {
+		final Class<?> clazz =
+				IJ.getClassLoader().loadClass(OBSOLETE_UPTODATE_CLASS_NAME);
+		final Method check = clazz.getMethod("check");
+		final Object result = check.invoke(null);
+		return new Runnable() {
+			@Override
+			public void run() {
 				if (result != null && "UPDATEABLE".equals(result.toString())) {
 					if (IJ.showMessageWithCancel("Updates available",
 							"There are updates available. Run the updater?")) {
-						run("");
+						Updater.this.run("");
 					}
 				}
 			}
-		} catch (Throwable t) {
-			t.printStackTrace();
-			if (IJ.showMessageWithCancel("Updater problem",
-					"There was a problem checking whether everything is up-to-date.\n" +
-					"Start the updater?")) {
-				runRemote();
+		};
+	}
+
+	private Runnable problem() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				if (IJ.showMessageWithCancel("Updater problem",
+						"There was a problem checking whether everything is up-to-date.\n" +
+						"Start the updater?")) {
+					runRemote();
+				}
 			}
+		};
+	}
+
+	/**
+	 * Perform the up-to-date check in the background.
+	 * 
+	 * The check itself runs in a daemon thread, so that a stalled network
+	 * connection cannot hold up the startup. If the check does not finish
+	 * within the number of seconds specified by the
+	 * <i>fiji.updater.checkTimeout</i> system property (default: 30), it is
+	 * abandoned. Otherwise its result is presented on the Event Dispatch
+	 * Thread.
+	 * 
+	 * If a check is already running, no new one is started; instead the
+	 * pending one is returned.
+	 * 
+	 * @return the pending check
+	 */
+	public static Future<Runnable> checkInBackground() {
+		synchronized (Updater.class) {
+			if (pendingCheck != null && !pendingCheck.isDone())
+				return pendingCheck;
+			final FutureTask<Runnable> task = new FutureTask<Runnable>(new Callable<Runnable>() {
+				@Override
+				public Runnable call() {
+					return new Updater().checkQuietly();
+				}
+			});
+			pendingCheck = task;
+			startDaemon(task, "Up-to-date check");
+			startDaemon(new Runnable() {
+				@Override
+				public void run() {
+					final Runnable action;
+					try {
+						action = task.get(Integer.getInteger(CHECK_TIMEOUT_PROPERTY, 30), TimeUnit.SECONDS);
+					} catch (TimeoutException e) {
+						task.cancel(true);
+						IJ.showStatus("The up-to-date check timed out");
+						return;
+					} catch (Throwable t) {
+						t.printStackTrace();
+						return;
+					}
+					if (GraphicsEnvironment.isHeadless())
+						action.run();
+					else
+						EventQueue.invokeLater(action);
+				}
+			}, "Up-to-date check timeout");
+			return task;
 		}
 	}
 
+	private static void startDaemon(final Runnable runnable, final String name) {
+		final Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
 	private void runRemote() {
+		if (Adapter.isRemoteUpdaterCached()) {
+			System.err.println("Falling back to the cached remote updater");
+			new Adapter(true).runUpdater();
+			return;
+		}
+		final String remoteURL = Mirror.rewrite(REMOTE_URL);
 		try {
-			System.err.println("Falling back to remote updater at " + REMOTE_URL);
-			final URL url = new URL(REMOTE_URL);
-			final Reader reader = new InputStreamReader(url.openStream());
+			System.err.println("Falling back to remote updater at " + remoteURL);
+			final String source = new BootstrapScript(remoteURL, RemoteJars.getCacheDirectory()).getSource();
 			try {
-				ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
-				ScriptEngine engine = scriptEngineManager.getEngineByName("ECMAScript");
-				engine.eval("importPackage(Packages.java.lang);");
-				engine.eval(reader);
+				BootstrapScript.eval(source);
 			} catch (final Throwable t) {
 				t.printStackTrace();
-				IJ.run("URL...", "url=[" + REMOTE_URL + "]");
+				IJ.run("URL...", "url=[" + remoteURL + "]");
 			}
 		} catch (final Throwable t) {
 			IJ.handleException(t);
@@ -0,0 +1,176 @@
+package fiji.updater;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * The generation of the ImageJ updater that works in this installation.
+ *
+ * Finding out which updater is available by trial and error means loading
+ * classes that are not there, and printing the resulting stack traces, on
+ * every single menu click. Instead, we probe once per session which
+ * generation's classes can be loaded, and remember the result.
+ *
+ * The generations are declared in the order in which they are tried: if the
+ * remembered one fails, the updater falls back to the ones after it.
+ *
+ * The result is also stored in the file {@value #FILE_NAME} in the ImageJ
+ * root directory, together with a fingerprint of the <i>.jar</i> files in
+ * <i>jars/</i> and <i>plugins/</i>, including their subdirectories (paths,
+ * sizes and modification times), so that the next session does not have to
+ * probe again unless the <i>.jar</i> files changed.
+ */
+enum UpdaterGeneration {
+	/** The ImageJ2 updater (<i>net.imagej.updater</i>) */
+	IJ2,
+	/** The obsolete updater (<i>imagej.updater</i>) */
+	OBSOLETE,
+	/** Neither is installed; use the remote updater */
+	REMOTE;
+
+	final static String FILE_NAME = "db.generation";
+
+	private static volatile UpdaterGeneration current;
+
+	/**
+	 * Get the updater generation working in this installation.
+	 *
+	 * @return the generation
+	 */
+	static UpdaterGeneration get() {
+		UpdaterGeneration result = current;
+		if (result != null)
+			return result;
+		synchronized (UpdaterGeneration.class) {
+			if (current != null)
+				return current;
+			String ijDir = System.getProperty("ij.dir");
+			File file = ijDir == null ? null : new File(ijDir, FILE_NAME);
+			String fingerprint = ijDir == null ? null : fingerprint(new File(ijDir));
+			result = file == null ? null : read(file, fingerprint);
+			if (result == null) {
+				result = probe(IJ.getClassLoader());
+				if (file != null)
+					write(file, result, fingerprint);
+			}
+			current = result;
+			return result;
+		}
+	}
+
+	/**
+	 * Forget the cached generation, e.g. when it failed to work after all.
+	 */
+	static synchronized void invalidate() {
+		current = null;
+		String ijDir = System.getProperty("ij.dir");
+		if (ijDir != null)
+			new File(ijDir, FILE_NAME).delete();
+	}
+
+	/**
+	 * Find out which generation's classes can be loaded.
+	 *
+	 * @param loader
+	 *            the class loader to probe
+	 * @return the generation
+	 */
+	static UpdaterGeneration probe(ClassLoader loader) {
+		if (loader == null)
+			loader = UpdaterGeneration.class.getClassLoader();
+		if (canLoad(loader, Updater.UPDATER_CLASS_NAME, Updater.UPTODATE_CLASS_NAME, "org.scijava.Context"))
+			return IJ2;
+		if (canLoad(loader, Updater.OBSOLETE_UPDATER_CLASS_NAME, Updater.OBSOLETE_UPTODATE_CLASS_NAME))
+			return OBSOLETE;
+		return REMOTE;
+	}
+
+	private static boolean canLoad(ClassLoader loader, String... classNames) {
+		try {
+			for (String className : classNames)
+				loader.loadClass(className);
+			return true;
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	/**
+	 * Fingerprint the <i>.jar</i> files of an ImageJ installation.
+	 *
+	 * @param ijDir
+	 *            the ImageJ root directory
+	 * @return the fingerprint
+	 */
+	static String fingerprint(File ijDir) {
+		CRC32 crc = new CRC32();
+		for (String dir : new String[] { "jars", "plugins" })
+			fingerprint(crc, new File(ijDir, dir), dir + "/");
+		return Long.toHexString(crc.getValue());
+	}
+
+	private static void fingerprint(CRC32 crc, File directory, String prefix) {
+		File[] list = directory.listFiles();
+		if (list == null)
+			return;
+		Arrays.sort(list);
+		for (File file : list) {
+			if (file.isDirectory()) {
+				fingerprint(crc, file, prefix + file.getName() + "/");
+				continue;
+			}
+			if (!file.getName().endsWith(".jar"))
+				continue;
+			String entry = prefix + file.getName() + "\t" + file.length() + "\t" + file.lastModified() + "\n";
+			try {
+				crc.update(entry.getBytes("UTF-8"));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static UpdaterGeneration read(File file, String fingerprint) {
+		if (!file.exists())
+			return null;
+		try {
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+			if (!fingerprint.equals(properties.getProperty("fingerprint")))
+				return null;
+			return valueOf(properties.getProperty("generation"));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static void write(File file, UpdaterGeneration generation, String fingerprint) {
+		Properties properties = new Properties();
+		properties.setProperty("generation", generation.name());
+		properties.setProperty("fingerprint", fingerprint);
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				properties.store(out, "Fiji Updater: the updater generation working in this installation");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// read-only installation; probe again next session
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package fiji.updater;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * The HTTP cache validators of a remote resource.
+ *
+ * To find out cheaply whether a remote resource changed, we remember its
+ * <i>ETag</i> and <i>Last-Modified</i> headers and send them back with a
+ * conditional request; if the resource did not change, the server answers
+ * with an empty <i>304 Not Modified</i>.
+ */
+class Validators {
+	private final static int TIMEOUT = 10000;
+
+	final String etag;
+	final long lastModified;
+
+	Validators(String etag, long lastModified) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Get the validators from a connection's response headers.
+	 *
+	 * @param connection
+	 *            the connection
+	 * @return the validators
+	 */
+	static Validators of(URLConnection connection) {
+		return new Validators(connection.getHeaderField("ETag"), connection.getLastModified());
+	}
+
+	/**
+	 * Make a request conditional.
+	 *
+	 * @param connection
+	 *            the connection that is not yet connected
+	 */
+	void apply(URLConnection connection) {
+		if (etag != null)
+			connection.setRequestProperty("If-None-Match", etag);
+		if (lastModified > 0)
+			connection.setIfModifiedSince(lastModified);
+	}
+
+	/**
+	 * Ask the server for a resource's current validators.
+	 *
+	 * For HTTP, this sends a <i>HEAD</i> request; other URLs, e.g. <i>file:</i>
+	 * URLs, only have a modification time.
+	 *
+	 * @param url
+	 *            the resource
+	 * @return the validators
+	 * @throws IOException
+	 */
+	static Validators fetch(URL url) throws IOException {
+		URLConnection connection = open(url);
+		try {
+			if (connection instanceof HttpURLConnection) {
+				HttpURLConnection http = (HttpURLConnection)connection;
+				http.setRequestMethod("HEAD");
+				if (http.getResponseCode() != HttpURLConnection.HTTP_OK)
+					throw new IOException("Could not access " + url + ": " + http.getResponseMessage());
+			}
+			return of(connection);
+		} finally {
+			close(connection);
+		}
+	}
+
+	/**
+	 * Ask the server whether a resource still matches these validators.
+	 *
+	 * For HTTP, this sends a conditional request; other URLs, e.g.
+	 * <i>file:</i> URLs, are asked for their modification time.
+	 *
+	 * @param url
+	 *            the resource
+	 * @return whether the resource is known not to have changed
+	 * @throws IOException
+	 */
+	boolean isUnmodified(URL url) throws IOException {
+		if (etag == null && lastModified <= 0)
+			return false;
+		URLConnection connection = open(url);
+		try {
+			if (!(connection instanceof HttpURLConnection))
+				return lastModified > 0 && connection.getLastModified() == lastModified;
+			apply(connection);
+			return ((HttpURLConnection)connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+		} finally {
+			close(connection);
+		}
+	}
+
+	/**
+	 * Ask the server whether a resource changed since a given time.
+	 *
+	 * For HTTP, this sends a conditional request; other URLs, e.g.
+	 * <i>file:</i> URLs, are asked for their modification time. Times are
+	 * compared at the resolution of HTTP dates, i.e. in seconds.
+	 *
+	 * @param url
+	 *            the resource
+	 * @param time
+	 *            the time, in milliseconds since the epoch
+	 * @return whether the resource is known not to have changed since then
+	 * @throws IOException
+	 */
+	static boolean isUnmodifiedSince(URL url, long time) throws IOException {
+		if (time <= 0)
+			return false;
+		URLConnection connection = open(url);
+		if (!(connection instanceof HttpURLConnection)) {
+			try {
+				long lastModified = connection.getLastModified();
+				return lastModified > 0 && lastModified / 1000 <= time / 1000;
+			} finally {
+				close(connection);
+			}
+		}
+		new Validators(null, time).apply(connection);
+		try {
+			return ((HttpURLConnection)connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+		} finally {
+			close(connection);
+		}
+	}
+
+	/**
+	 * Open a connection with sensible time outs.
+	 *
+	 * @param url
+	 *            the URL to connect to
+	 * @return the connection
+	 * @throws IOException
+	 */
+	static URLConnection open(URL url) throws IOException {
+		URLConnection connection = url.openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		connection.setUseCaches(false);
+		return connection;
+	}
+
+	private static void close(URLConnection connection) {
+		if (connection instanceof HttpURLConnection)
+			((HttpURLConnection)connection).disconnect();
+		else try {
+			connection.getInputStream().close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package fiji.updater;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread pools for concurrent downloads and updates.
+ *
+ * The pools' threads are daemon threads, so that a stalled connection cannot
+ * keep the JVM from exiting. Failed tasks are reported as the
+ * {@link IOException} they threw, or wrapped in one.
+ */
+class Workers {
+	/**
+	 * Make a pool of daemon threads.
+	 *
+	 * @param threads
+	 *            the number of threads
+	 * @param name
+	 *            the name of the threads
+	 * @return the pool, to be shut down by the caller
+	 */
+	static ExecutorService newPool(int threads, final String name) {
+		return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Wait for a task and get its result.
+	 *
+	 * @param future
+	 *            the task
+	 * @return the result
+	 * @throws IOException
+	 *             if the task failed, or waiting was interrupted (in which
+	 *             case the thread's interrupt flag is set again)
+	 */
+	static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Get the exception a task failed with.
+	 *
+	 * @param e
+	 *            the exception reported by the {@link Future}
+	 * @return the task's exception, wrapped unless it is an
+	 *         {@link IOException}
+	 */
+	static IOException unwrap(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof IOException)
+			return (IOException)cause;
+		return new IOException(cause);
+	}
+}
@@ -0,0 +1,167 @@
+package fiji.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Verifies that {@link CheckCache} only reuses results that are still valid.
+ */
+public class CheckCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File ijDir, site, remoteDb;
+	private long siteTime;
+
+	@Before
+	public void setUp() throws IOException {
+		ijDir = folder.getRoot();
+		site = folder.newFolder("site");
+		remoteDb = new File(site, "db.xml.gz");
+		TestUtils.writeGzipped(remoteDb, "<pluginRecords/>");
+		// HTTP dates have a resolution of seconds
+		siteTime = (System.currentTimeMillis() - 60 * 60 * 1000) / 1000 * 1000;
+		remoteDb.setLastModified(siteTime);
+		writeLocalDb(site.toURI().toString());
+	}
+
+	private void writeLocalDb(String url) throws IOException {
+		TestUtils.writeGzipped(new File(ijDir, "db.xml.gz"), "<pluginRecords>"
+			+ "<update-site name=\"ImageJ\" url=\"" + url + "\" timestamp=\"20140102030405\"/>"
+			+ "</pluginRecords>");
+	}
+
+	@Test
+	public void testOnlyUpToDateIsCached() {
+		CheckCache cache = new CheckCache(ijDir);
+		cache.put("UPDATEABLE");
+		assertNull(cache.get());
+		cache.put("UP_TO_DATE");
+		assertEquals("UP_TO_DATE", cache.get());
+		cache.put("REMIND_LATER");
+		assertNull(cache.get());
+	}
+
+	@Test
+	public void testRevalidation() throws IOException {
+		CheckCache cache = new CheckCache(ijDir);
+		cache.put("UP_TO_DATE");
+		long now = System.currentTimeMillis();
+		setTimes(now - 2 * 60 * 60 * 1000, null);
+		// the site did not change
+		assertEquals("UP_TO_DATE", cache.get());
+		Properties properties = read();
+		assertEquals(String.valueOf(now - 2 * 60 * 60 * 1000), properties.getProperty("checked"));
+
+		// the site changed
+		setTimes(now - 2 * 60 * 60 * 1000, null);
+		remoteDb.setLastModified(siteTime + 60000);
+		assertNull(cache.get());
+	}
+
+	@Test
+	public void testModifiedDuringCheck() {
+		CheckCache cache = new CheckCache(ijDir);
+		// the site changed after the check started
+		remoteDb.setLastModified(System.currentTimeMillis() + 1000);
+		cache.put("UP_TO_DATE");
+		assertNull(cache.get());
+	}
+
+	@Test
+	public void testETag() throws IOException {
+		final String[] etag = { "\"v1\"" };
+		final String[] ifNoneMatch = new String[1];
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				ifNoneMatch[0] = exchange.getRequestHeaders().getFirst("If-None-Match");
+				exchange.getResponseHeaders().set("ETag", etag[0]);
+				exchange.sendResponseHeaders(etag[0].equals(ifNoneMatch[0]) ? 304 : 200, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		try {
+			writeLocalDb("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+			CheckCache cache = new CheckCache(ijDir);
+			cache.put("UP_TO_DATE");
+			assertEquals("\"v1\"", read().getProperty("site.0.etag"));
+
+			long now = System.currentTimeMillis();
+			setTimes(now - 2 * 60 * 60 * 1000, null);
+			assertEquals("UP_TO_DATE", cache.get());
+			assertEquals("\"v1\"", ifNoneMatch[0]);
+
+			// the site changed
+			etag[0] = "\"v2\"";
+			setTimes(now - 2 * 60 * 60 * 1000, null);
+			assertNull(cache.get());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testMaximumAge() throws IOException {
+		CheckCache cache = new CheckCache(ijDir);
+		cache.put("UP_TO_DATE");
+		long now = System.currentTimeMillis();
+		// recently revalidated, but checked too long ago
+		setTimes(now - CheckCache.MAX_AGE - 1, now);
+		assertNull(cache.get());
+	}
+
+	@Test
+	public void testLocalUpdateInvalidates() {
+		CheckCache cache = new CheckCache(ijDir);
+		cache.put("UP_TO_DATE");
+		new File(ijDir, "db.xml.gz").setLastModified(System.currentTimeMillis() - 60000);
+		assertNull(cache.get());
+	}
+
+	private void setTimes(long checked, Long revalidated) throws IOException {
+		Properties properties = read();
+		properties.setProperty("checked", String.valueOf(checked));
+		if (revalidated == null)
+			properties.remove("revalidated");
+		else
+			properties.setProperty("revalidated", String.valueOf(revalidated));
+		OutputStream out = new FileOutputStream(new File(ijDir, CheckCache.FILE_NAME));
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	private Properties read() throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(new File(ijDir, CheckCache.FILE_NAME));
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+}
@@ -0,0 +1,194 @@
+package fiji.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Verifies that {@link ParallelInstaller} installs <i>.jar</i> files from
+ * {@link Delta deltas} published on a local, file-based update site, and
+ * falls back to downloading the complete file if a delta does not yield the
+ * expected checksum.
+ */
+public class DeltaTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File ijDir, site;
+	private Adapter adapter;
+	private ParallelInstallerTest.Collection files;
+	private String deltasProperty;
+
+	@Before
+	public void setUp() throws IOException {
+		ijDir = folder.getRoot();
+		site = folder.newFolder("site");
+		files = new ParallelInstallerTest.Collection(ijDir, site);
+		adapter = new Adapter(false) {
+			@Override
+			String getUpdaterDigest(String path, File file) throws IOException {
+				return path.endsWith(".jar") ? jarDigest(file) : FileDigest.digest(path, file);
+			}
+		};
+		deltasProperty = System.getProperty(ParallelInstaller.DELTAS_PROPERTY);
+		System.setProperty(ParallelInstaller.DELTAS_PROPERTY, "true");
+	}
+
+	@After
+	public void tearDown() {
+		TestUtils.restoreProperty(ParallelInstaller.DELTAS_PROPERTY, deltasProperty);
+	}
+
+	@Test
+	public void testCreateAndApply() throws IOException {
+		File oldJar = TestUtils.jar(new File(ijDir, "old.jar"), "a.txt", "unchanged", "b.txt", "old", "c.txt", "removed");
+		File newJar = TestUtils.jar(new File(ijDir, "new.jar"), "a.txt", "unchanged", "b.txt", "new", "d.txt", "added");
+		File delta = new File(ijDir, "delta");
+		Delta.create(oldJar, newJar, delta);
+		File result = new File(ijDir, "result.jar");
+		Delta.apply(oldJar, delta, result);
+		assertEquals(jarDigest(newJar), jarDigest(result));
+
+		ZipFile zip = new ZipFile(delta);
+		try {
+			// only the changed and added entries are part of the delta
+			assertTrue(zip.getEntry("a.txt") == null);
+			assertTrue(zip.getEntry("b.txt") != null);
+			assertTrue(zip.getEntry("d.txt") != null);
+		} finally {
+			zip.close();
+		}
+	}
+
+	@Test
+	public void testEntryOrder() throws IOException {
+		File oldJar = TestUtils.jar(new File(ijDir, "old.jar"), "META-INF/MANIFEST.MF", "Version: 1\n",
+			"a.txt", "unchanged", "b.txt", "old");
+		File newJar = TestUtils.jar(new File(ijDir, "new.jar"), "META-INF/MANIFEST.MF", "Version: 2\n",
+			"c.txt", "added", "a.txt", "unchanged", "b.txt", "new");
+		File delta = new File(ijDir, "delta");
+		Delta.create(oldJar, newJar, delta);
+		File result = new File(ijDir, "result.jar");
+		Delta.apply(oldJar, delta, result);
+		assertEquals(entryNames(newJar), entryNames(result));
+	}
+
+	@Test
+	public void testInstallDelta() throws IOException {
+		File local = TestUtils.jar(new File(ijDir, "jars/foo.jar"), "a.txt", "unchanged", "b.txt", "old");
+		File newJar = TestUtils.jar(new File(ijDir, "new.jar"), "a.txt", "unchanged", "b.txt", "new");
+		ParallelInstallerTest.FileObject file = addFile("jars/foo.jar", newJar);
+		// publish only the delta: the complete file cannot be downloaded
+		publishDelta("jars/foo.jar", local, newJar);
+		assertFalse(new File(site, "jars/foo.jar").exists());
+
+		install(file);
+		File installed = new File(ijDir, "update/jars/foo.jar");
+		assertEquals(jarDigest(newJar), jarDigest(installed));
+		assertFalse(new File(installed.getPath() + ".delta").exists());
+	}
+
+	@Test
+	public void testChecksumMismatchFallsBack() throws IOException {
+		File local = TestUtils.jar(new File(ijDir, "jars/foo.jar"), "a.txt", "unchanged", "b.txt", "old");
+		File newJar = TestUtils.jar(new File(ijDir, "new.jar"), "a.txt", "unchanged", "b.txt", "new");
+		File otherJar = TestUtils.jar(new File(ijDir, "other.jar"), "a.txt", "unchanged", "b.txt", "other");
+		ParallelInstallerTest.FileObject file = addFile("jars/foo.jar", newJar);
+		TestUtils.copy(newJar, new File(site, "jars/foo.jar"));
+		// a delta yielding the wrong file
+		publishDelta("jars/foo.jar", local, otherJar);
+
+		long bytes = install(file);
+		File installed = new File(ijDir, "update/jars/foo.jar");
+		assertEquals(jarDigest(newJar), jarDigest(installed));
+		assertEquals(newJar.length(), bytes);
+		assertFalse(new File(installed.getPath() + ".delta").exists());
+	}
+
+	@Test
+	public void testNoDeltaFallsBack() throws IOException {
+		TestUtils.jar(new File(ijDir, "jars/foo.jar"), "a.txt", "unchanged", "b.txt", "old");
+		File newJar = TestUtils.jar(new File(ijDir, "new.jar"), "a.txt", "unchanged", "b.txt", "new");
+		ParallelInstallerTest.FileObject file = addFile("jars/foo.jar", newJar);
+		TestUtils.copy(newJar, new File(site, "jars/foo.jar"));
+
+		install(file);
+		assertEquals(jarDigest(newJar), jarDigest(new File(ijDir, "update/jars/foo.jar")));
+	}
+
+	private ParallelInstallerTest.FileObject addFile(String filename, File contents) throws IOException {
+		ParallelInstallerTest.FileObject file = new ParallelInstallerTest.FileObject();
+		file.filename = filename;
+		file.checksum = jarDigest(contents);
+		files.put(filename, file);
+		return file;
+	}
+
+	private void publishDelta(String filename, File oldJar, File newJar) throws IOException {
+		File delta = new File(Delta.getURL(new File(site, filename).getPath(), jarDigest(oldJar)));
+		delta.getParentFile().mkdirs();
+		Delta.create(oldJar, newJar, delta);
+	}
+
+	private long install(Object... toInstall) throws IOException {
+		return new ParallelInstaller(adapter, files, new Object(), ijDir, 1).start(Arrays.asList(toInstall));
+	}
+
+	private static List<String> entryNames(File jar) throws IOException {
+		List<String> result = new ArrayList<String>();
+		ZipFile zip = new ZipFile(jar);
+		try {
+			for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); )
+				result.add(entries.nextElement().getName());
+		} finally {
+			zip.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Checksum a <i>.jar</i> file by its entries' names and contents, like the
+	 * ImageJ updater does.
+	 *
+	 * @param file
+	 *            the <i>.jar</i> file
+	 * @return the checksum
+	 * @throws IOException
+	 */
+	private static String jarDigest(File file) throws IOException {
+		Map<String, byte[]> entries = new TreeMap<String, byte[]>();
+		ZipFile zip = new ZipFile(file);
+		try {
+			for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+				ZipEntry entry = e.nextElement();
+				entries.put(entry.getName(), TestUtils.readBytes(zip.getInputStream(entry)));
+			}
+		} finally {
+			zip.close();
+		}
+		MessageDigest digest = FileDigest.newDigest(null);
+		for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+			digest.update(entry.getKey().getBytes("UTF-8"));
+			digest.update(entry.getValue());
+		}
+		return FileDigest.toHex(digest.digest());
+	}
+}
@@ -0,0 +1,135 @@
+package fiji.updater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Verifies that {@link Downloader} resumes a download after the server
+ * dropped the connection mid-transfer.
+ */
+public class DownloaderTest {
+	private final static String ETAG = "\"v1\"";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpServer server;
+	private File dir;
+	private URL url;
+	private byte[] payload;
+
+	/**
+	 * After how many bytes to drop the connection, or -1 to send everything.
+	 */
+	private volatile int dropAfter = -1;
+
+	/**
+	 * The <i>Range</i> headers of all requests (<i>null</i> if absent).
+	 */
+	private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+
+	@Before
+	public void setUp() throws IOException {
+		dir = folder.getRoot();
+		payload = new byte[1 << 20];
+		new Random(17).nextBytes(payload);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/file", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					String range = exchange.getRequestHeaders().getFirst("Range");
+					ranges.add(range);
+					int offset = 0;
+					exchange.getResponseHeaders().set("ETag", ETAG);
+					if (range != null && ETAG.equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+						offset = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+						exchange.getResponseHeaders().set("Content-Range",
+							"bytes " + offset + "-" + (payload.length - 1) + "/" + payload.length);
+						exchange.sendResponseHeaders(206, payload.length - offset);
+					}
+					else
+						exchange.sendResponseHeaders(200, payload.length);
+					OutputStream out = exchange.getResponseBody();
+					int end = dropAfter < 0 ? payload.length : Math.min(payload.length, offset + dropAfter);
+					out.write(payload, offset, end - offset);
+					out.flush();
+					if (end < payload.length)
+						// drop the connection mid-transfer
+						return;
+					out.close();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/file");
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testDownload() throws IOException {
+		File file = new File(dir, "file");
+		assertEquals(payload.length, Downloader.download(url, file, null));
+		assertArrayEquals(payload, TestUtils.readBytes(file));
+		assertFalse(Downloader.getPartFile(file).exists());
+		assertFalse(Downloader.getInfoFile(file).exists());
+	}
+
+	@Test
+	public void testResumeAfterDroppedConnection() throws IOException {
+		File file = new File(dir, "file");
+		File part = Downloader.getPartFile(file);
+		String checksum = FileDigest.toHex(FileDigest.newDigest("file").digest(payload));
+
+		dropAfter = 300000;
+		try {
+			Downloader.download(url, file, null, Downloader.Verification.checksum("file", checksum, payload.length));
+			fail("The dropped connection went unnoticed");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(file.exists());
+		assertTrue(part.exists());
+		long partial = part.length();
+		assertTrue("partial download: " + partial, partial > 0 && partial <= 300000);
+
+		dropAfter = -1;
+		Downloader.Verification verification = Downloader.Verification.checksum("file", checksum, payload.length);
+		assertEquals(payload.length - partial, Downloader.download(url, file, null, verification));
+		assertEquals(checksum, verification.getChecksum());
+		assertArrayEquals(payload, TestUtils.readBytes(file));
+		assertFalse(part.exists());
+		assertNull(ranges.get(0));
+		assertEquals("bytes=" + partial + "-", ranges.get(1));
+	}
+}
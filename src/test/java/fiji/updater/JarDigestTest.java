@@ -0,0 +1,118 @@
+package fiji.updater;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Verifies that {@link JarDigest} computes the checksum of a <i>.jar</i> file
+ * from its bytes, in whatever chunks they arrive, just like the ImageJ
+ * updater computes it from the complete file.
+ */
+public class JarDigestTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSample() throws IOException {
+		File jar = folder.newFile("sample.jar");
+		JarDigest.writeSample(jar);
+		assertEquals(readBack(jar), JarDigest.digest(jar));
+	}
+
+	@Test
+	public void testUnsortedEntries() throws IOException {
+		File jar = TestUtils.jar(folder.newFile("unsorted.jar"), "z.txt", "last", "dir/", "", "a.txt", "first",
+			"empty.txt", "");
+		assertEquals(readBack(jar), JarDigest.digest(jar));
+	}
+
+	@Test
+	public void testChunks() throws IOException {
+		File jar = folder.newFile("sample.jar");
+		JarDigest.writeSample(jar);
+		byte[] bytes = TestUtils.readBytes(jar);
+		for (int chunk : new int[] { 1, 3, 29, 31, 4096 }) {
+			MessageDigest digest = new JarDigest();
+			for (int offset = 0; offset < bytes.length; offset += chunk)
+				digest.update(bytes, offset, Math.min(chunk, bytes.length - offset));
+			assertEquals("chunk size " + chunk, readBack(jar), FileDigest.toHex(digest.digest()));
+		}
+	}
+
+	@Test
+	public void testUnsupported() throws IOException {
+		File plain = folder.newFile("plain.jar");
+		TestUtils.write(plain, "not a .jar file");
+		assertEquals("", JarDigest.digest(plain));
+
+		File jar = folder.newFile("sample.jar");
+		JarDigest.writeSample(jar);
+		byte[] bytes = TestUtils.readBytes(jar);
+		File truncated = folder.newFile("truncated.jar");
+		TestUtils.write(truncated, Arrays.copyOf(bytes, bytes.length / 2));
+		assertEquals("", JarDigest.digest(truncated));
+	}
+
+	/**
+	 * Compute the checksum from the complete file, like the updater, for
+	 * manifests and <i>.properties</i> files without unusual line breaks.
+	 */
+	private static String readBack(File file) throws IOException {
+		Map<String, byte[]> entries = new TreeMap<String, byte[]>();
+		ZipFile zip = new ZipFile(file);
+		try {
+			for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+				ZipEntry entry = e.nextElement();
+				entries.put(entry.getName(), TestUtils.readBytes(zip.getInputStream(entry)));
+			}
+		} finally {
+			zip.close();
+		}
+		MessageDigest digest = FileDigest.newDigest(null);
+		for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+			String name = entry.getKey();
+			digest.update(name.getBytes("ASCII"));
+			if (name.endsWith(".properties"))
+				digest.update(filterLines(entry.getValue(), false));
+			else if (name.equals("META-INF/MANIFEST.MF"))
+				digest.update(filterLines(entry.getValue(), true));
+			else
+				digest.update(entry.getValue());
+		}
+		return FileDigest.toHex(digest.digest());
+	}
+
+	private static byte[] filterLines(byte[] contents, boolean onlyMainClass) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(contents), "UTF-8"));
+		StringBuilder builder = new StringBuilder();
+		for (;;) {
+			String line = reader.readLine();
+			if (line == null)
+				break;
+			if (onlyMainClass) {
+				if (line.startsWith("Main-Class:"))
+					builder.append(line).append("\n");
+			}
+			else
+				// the updater keeps the line break of a comment
+				builder.append(line.startsWith("#") ? "" : line).append("\n");
+		}
+		return builder.toString().getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,143 @@
+package fiji.updater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Verifies that {@link LocalScan} selects the same files as the ImageJ
+ * updater's {@code Checksummer}.
+ */
+public class LocalScanTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File ijDir;
+
+	@Before
+	public void setUp() {
+		ijDir = folder.getRoot();
+	}
+
+	@Test
+	public void testSampleTree() throws IOException {
+		String[] expected = {
+			"Contents/MacOS/ImageJ-macosx",
+			"ImageJ-linux64",
+			"ImageJ-win32.exe",
+			"images/icon.png",
+			"jars/bio-formats.jar",
+			"jars/linux64/native.jar",
+			"lib/linux64/libfoo.so",
+			"luts/fire.lut",
+			"macros/startup.ijm",
+			"misc/Launcher.class",
+			"mm/mmgr_dal_demo.so",
+			"mmautofocus/Autofocus.jar",
+			"mmplugins/Plugin.jar",
+			"plugins/Examples/Example.py",
+			"plugins/Fiji_Updater.jar",
+			"plugins/macro.txt",
+			"scripts/Startup.bsh",
+			"scripts/matlab.m"
+		};
+		for (String path : expected)
+			touch(path);
+		// not considered by the Checksummer
+		touch("ImageJ-linux64.old");
+		touch("fiji-linux64.bak");
+		touch("Contents/Info.plist");
+		touch("jars/README.txt");
+		touch("jars/.hidden.jar");
+		touch("luts/fire.txt");
+		touch("macros/notes.md");
+		touch("plugins/.DS_Store");
+		touch("plugins/Fiji_Updater.jar.old");
+		touch("scripts/Startup.ijm");
+		touch("unrelated/file.jar");
+
+		List<String> actual = new LocalScan(null, ijDir, 2, null).listFiles();
+		Collections.sort(actual);
+		assertEquals(Arrays.asList(expected), actual);
+	}
+
+	@Test
+	public void testDefaultsMatchUpdater() throws ClassNotFoundException {
+		assumeTrue(isAvailable("imagej.updater.core.Checksummer"));
+		String[][] directories = Adapter.getChecksummerDirectories();
+		assertEquals(LocalScan.DIRECTORIES.length, directories.length);
+		for (int i = 0; i < directories.length; i++)
+			assertArrayEquals(LocalScan.DIRECTORIES[i], directories[i]);
+		List<String> launchers = new ArrayList<String>(Arrays.asList(Adapter.getLaunchers()));
+		Collections.sort(launchers);
+		List<String> expected = new ArrayList<String>(Arrays.asList(LocalScan.LAUNCHERS));
+		Collections.sort(expected);
+		assertEquals(expected, launchers);
+	}
+
+	@Test
+	public void testInstalledVersionsAreSorted() throws IOException {
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 100; i++)
+			expected.add(String.format("jars/lib-%03d.jar", i));
+		for (String path : expected)
+			touch(path);
+
+		Adapter adapter = new Adapter(false) {
+			@Override
+			String getDigest(String path, File file) throws Exception {
+				// within each group of ten files, let the later ones finish first
+				Thread.sleep(10 * (10 - Integer.parseInt(path.substring(9, 12)) % 10));
+				return "checksum-" + path;
+			}
+
+			@Override
+			long getTimestamp(File file) {
+				return 20130101000000l;
+			}
+		};
+		adapter.setThreads(8);
+		String ijDirProperty = System.getProperty("ij.dir");
+		String indexProperty = System.getProperty(Adapter.CHECKSUM_INDEX_PROPERTY);
+		StringWriter writer = new StringWriter();
+		try {
+			System.setProperty("ij.dir", ijDir.getPath());
+			System.setProperty(Adapter.CHECKSUM_INDEX_PROPERTY, "false");
+			assertTrue(adapter.writeInstalledVersions(writer));
+		} finally {
+			TestUtils.restoreProperty("ij.dir", ijDirProperty);
+			TestUtils.restoreProperty(Adapter.CHECKSUM_INDEX_PROPERTY, indexProperty);
+		}
+		StringBuilder builder = new StringBuilder();
+		for (String path : expected)
+			builder.append("  checksum-").append(path).append(" 20130101000000 ").append(path).append("\n");
+		assertEquals(builder.toString(), writer.toString());
+	}
+
+	private static boolean isAvailable(String className) {
+		try {
+			Class.forName(className, false, LocalScanTest.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	private void touch(String path) throws IOException {
+		TestUtils.write(new File(ijDir, path), new byte[0]);
+	}
+}
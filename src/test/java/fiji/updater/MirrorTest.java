@@ -0,0 +1,180 @@
+package fiji.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Verifies that {@link Mirror} synchronizes a local, file-based update site
+ * and redirects update sites to their mirrors.
+ */
+public class MirrorTest {
+	private final static String FOO = "plugins/Foo.jar-20130101000000";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File site, target;
+	private String mirrorProperty;
+
+	/**
+	 * Mimics the {@code FilesCollection}'s update sites.
+	 */
+	public static class Collection {
+		public final Map<String, UpdateSite> sites = new LinkedHashMap<String, UpdateSite>();
+
+		public Set<String> getUpdateSiteNames() {
+			return sites.keySet();
+		}
+
+		public UpdateSite getUpdateSite(String name) {
+			return sites.get(name);
+		}
+	}
+
+	/**
+	 * Mimics the {@code UpdateSite}.
+	 */
+	public static class UpdateSite {
+		public String url;
+
+		public UpdateSite(String url) {
+			this.url = url;
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		site = folder.newFolder("site");
+		target = new File(folder.getRoot(), "mirror");
+		File foo = TestUtils.jar(new File(site, FOO), "Foo.class", "class Foo");
+		TestUtils.writeGzipped(new File(site, "db.xml.gz"), "<pluginRecords><plugin filename=\"plugins/Foo.jar\">"
+			+ "<version checksum=\"0\" timestamp=\"20130101000000\" filesize=\"" + foo.length() + "\"/>"
+			+ "</plugin></pluginRecords>");
+		TestUtils.write(new File(site, "bootstrap.js"), "// version 1");
+		mirrorProperty = System.getProperty(Mirror.MIRROR_PROPERTY);
+	}
+
+	@After
+	public void tearDown() {
+		TestUtils.restoreProperty(Mirror.MIRROR_PROPERTY, mirrorProperty);
+	}
+
+	@Test
+	public void testSync() throws IOException {
+		new Mirror(site.toURI().toString(), target).sync(2);
+		assertEquals(new File(site, FOO).length(), new File(target, FOO).length());
+		assertTrue(new File(target, "db.xml.gz").isFile());
+		File bootstrap = new File(target, "bootstrap.js");
+		assertEquals("// version 1", TestUtils.read(bootstrap));
+		assertEquals(new File(site, "bootstrap.js").lastModified(), bootstrap.lastModified());
+	}
+
+	@Test
+	public void testRevalidateBootstrap() throws IOException {
+		Mirror mirror = new Mirror(site.toURI().toString(), target);
+		mirror.sync(1);
+		File bootstrap = new File(target, "bootstrap.js");
+		long lastModified = bootstrap.lastModified();
+
+		// an unmodified bootstrap.js is not transferred again
+		TestUtils.write(bootstrap, "// not transferred");
+		bootstrap.setLastModified(lastModified);
+		mirror.sync(1);
+		assertEquals("// not transferred", TestUtils.read(bootstrap));
+
+		File source = new File(site, "bootstrap.js");
+		TestUtils.write(source, "// version 2");
+		source.setLastModified(lastModified + 10000);
+		mirror.sync(1);
+		assertEquals("// version 2", TestUtils.read(bootstrap));
+		assertEquals(source.lastModified(), bootstrap.lastModified());
+	}
+
+	@Test
+	public void testRevalidateDbXmlGz() throws IOException {
+		Mirror mirror = new Mirror(site.toURI().toString(), target);
+		mirror.sync(1);
+		File dbXmlGz = new File(target, "db.xml.gz");
+		long lastModified = dbXmlGz.lastModified();
+
+		// an unmodified db.xml.gz is not transferred again
+		TestUtils.writeGzipped(dbXmlGz, "<pluginRecords/>");
+		dbXmlGz.setLastModified(lastModified);
+		mirror.sync(1);
+		assertEquals("<pluginRecords/>", new String(TestUtils.readBytes(new GZIPInputStream(new FileInputStream(dbXmlGz))), "UTF-8"));
+	}
+
+	@Test
+	public void testRejectPathTraversal() throws IOException {
+		TestUtils.writeGzipped(new File(site, "db.xml.gz"), "<pluginRecords><plugin filename=\"../evil.jar\">"
+			+ "<version checksum=\"0\" timestamp=\"20130101000000\" filesize=\"1\"/>"
+			+ "</plugin></pluginRecords>");
+		try {
+			new Mirror(site.toURI().toString(), target).sync(1);
+			fail("Path traversal was not rejected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("evil.jar"));
+		}
+		assertFalse(new File(folder.getRoot(), "evil.jar-20130101000000").exists());
+		assertFalse(new File(target, "db.xml.gz").exists());
+
+		Mirror mirror = new Mirror(site.toURI().toString(), target);
+		for (String path : new String[] { "/etc/passwd", "jars/../../evil.jar", "." })
+			try {
+				mirror.resolve(path);
+				fail("Accepted " + path);
+			} catch (IOException e) {
+				// expected
+			}
+		assertEquals(new File(target, "jars/ij.jar").getAbsoluteFile(), mirror.resolve("jars/./ij.jar"));
+	}
+
+	@Test
+	public void testRewrite() {
+		System.setProperty(Mirror.MIRROR_PROPERTY, "http://mirror.example.org/imagej");
+		assertEquals("http://mirror.example.org/imagej/bootstrap.js", Mirror.rewrite(Mirror.IMAGEJ_SITE + "bootstrap.js"));
+		assertEquals("http://sites.imagej.net/Foo/", Mirror.rewrite("http://sites.imagej.net/Foo/"));
+
+		System.setProperty(Mirror.MIRROR_PROPERTY, Mirror.IMAGEJ_SITE + "=file:/srv/imagej/,"
+			+ " http://sites.imagej.net/Foo=http://mirror.example.org/foo");
+		assertEquals("file:/srv/imagej/jars/ij.jar", Mirror.rewrite(Mirror.IMAGEJ_SITE + "jars/ij.jar"));
+		assertEquals("http://mirror.example.org/foo/", Mirror.rewrite("http://sites.imagej.net/Foo/"));
+		assertEquals("http://mirror.example.org/foo/", Mirror.rewrite("http://sites.imagej.net/Foo"));
+		assertEquals("http://sites.imagej.net/Bar/", Mirror.rewrite("http://sites.imagej.net/Bar/"));
+	}
+
+	@Test
+	public void testRewriteUpdateSites() throws Exception {
+		Collection files = new Collection();
+		UpdateSite imagej = new UpdateSite(Mirror.IMAGEJ_SITE);
+		UpdateSite other = new UpdateSite("http://sites.imagej.net/Bar/");
+		files.sites.put("ImageJ", imagej);
+		files.sites.put("Bar", other);
+		System.setProperty(Mirror.MIRROR_PROPERTY, "file:/srv/imagej");
+
+		Map<Object, String> urls = Mirror.rewrite(files);
+		assertEquals("file:/srv/imagej/", imagej.url);
+		assertEquals("http://sites.imagej.net/Bar/", other.url);
+		assertEquals(Arrays.<Object>asList(imagej), Arrays.asList(urls.keySet().toArray()));
+
+		Adapter.setUpdateSiteURLs(urls);
+		assertEquals(Mirror.IMAGEJ_SITE, imagej.url);
+	}
+}
@@ -0,0 +1,271 @@
+package fiji.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Verifies that {@link ParallelInstaller} prepares the <i>update/</i>
+ * directory just like the ImageJ updater's {@code Installer}.
+ *
+ * The {@code FilesCollection} and its {@code FileObject}s are mimicked by
+ * {@link Collection} and {@link FileObject}, which {@link Adapter} accesses
+ * reflectively, just like the real ones.
+ */
+public class ParallelInstallerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File ijDir, site;
+	private Adapter adapter;
+	private Collection files;
+
+	/**
+	 * Mimics the {@code FilesCollection}.
+	 */
+	public static class Collection extends LinkedHashMap<String, Object> {
+		private static final long serialVersionUID = 1L;
+		public final File ijDir;
+		public final String siteURL;
+		public final List<Object> toUninstall = new ArrayList<Object>();
+
+		public Collection(File ijDir, File site) {
+			this.ijDir = ijDir;
+			siteURL = site.toURI().toString();
+		}
+
+		public String getURL(Object file) {
+			return siteURL + ((FileObject)file).filename;
+		}
+
+		public Iterable<Object> toUninstall() {
+			return toUninstall;
+		}
+	}
+
+	/**
+	 * Mimics the {@code FileObject}.
+	 */
+	public static class FileObject {
+		public String filename, localFilename, checksum, status = "INSTALLED";
+		public boolean executable;
+		public long filesize;
+
+		public String getChecksum() {
+			return checksum;
+		}
+
+		public String getLocalFilename(boolean forceDefault) {
+			return forceDefault || localFilename == null ? filename : localFilename;
+		}
+
+		public void stageForUninstall(Collection files) throws IOException {
+			// like the updater: a zero-length file in update/ removes the file
+			File marker = new File(new File(files.ijDir, "update"), filename);
+			marker.getParentFile().mkdirs();
+			new FileOutputStream(marker).close();
+			status = "NOT_INSTALLED";
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		ijDir = folder.getRoot();
+		site = folder.newFolder("site");
+		files = new Collection(ijDir, site);
+		adapter = new Adapter(false) {
+			@Override
+			String getUpdaterDigest(String path, File file) throws IOException {
+				return FileDigest.digest(path, file);
+			}
+		};
+	}
+
+	@Test
+	public void testVersionRename() throws IOException {
+		TestUtils.write(new File(ijDir, "jars/foo-1.0.jar"), "old version");
+		FileObject file = addFile("jars/foo-1.1.jar", "new version");
+		file.localFilename = "jars/foo-1.0.jar";
+
+		install(file);
+		assertEquals("new version", TestUtils.read(new File(ijDir, "update/jars/foo-1.1.jar")));
+		File marker = new File(ijDir, "update/jars/foo-1.0.jar");
+		assertTrue(marker.isFile());
+		assertEquals(0, marker.length());
+		// the old version is removed only by moveUpdatedIntoPlace()
+		assertEquals("old version", TestUtils.read(new File(ijDir, "jars/foo-1.0.jar")));
+	}
+
+	@Test
+	public void testUnchangedNameHasNoMarker() throws IOException {
+		TestUtils.write(new File(ijDir, "jars/bar.jar"), "old version");
+		FileObject file = addFile("jars/bar.jar", "new version");
+		file.localFilename = "jars/bar.jar";
+
+		install(file);
+		assertEquals("new version", TestUtils.read(new File(ijDir, "update/jars/bar.jar")));
+	}
+
+	@Test
+	public void testExecutable() throws IOException {
+		TestUtils.write(new File(ijDir, "ImageJ-linux64"), "old launcher");
+		TestUtils.write(new File(ijDir, "ImageJ-win64.exe"), "old launcher");
+		FileObject linux = addFile("ImageJ-linux64", "new launcher");
+		linux.executable = true;
+		FileObject windows = addFile("ImageJ-win64.exe", "new launcher");
+		windows.executable = true;
+
+		install(linux, windows);
+		File launcher = new File(ijDir, "ImageJ-linux64");
+		assertEquals("new launcher", TestUtils.read(launcher));
+		assertTrue(launcher.canExecute());
+		assertEquals("old launcher", TestUtils.read(new File(ijDir, "ImageJ-linux64.old")));
+		assertEquals("new launcher", TestUtils.read(new File(ijDir, "ImageJ-win64.exe")));
+		assertEquals("old launcher", TestUtils.read(new File(ijDir, "ImageJ-win64.old.exe")));
+		assertFalse(new File(ijDir, "update/ImageJ-linux64").exists());
+		assertFalse(new File(ijDir, "update/ImageJ-win64.exe").exists());
+	}
+
+	@Test
+	public void testUninstall() throws IOException {
+		TestUtils.write(new File(ijDir, "plugins/Obsolete.jar"), "obsolete");
+		FileObject obsolete = new FileObject();
+		obsolete.filename = "plugins/Obsolete.jar";
+		files.put(obsolete.filename, obsolete);
+		files.toUninstall.add(obsolete);
+
+		install();
+		File marker = new File(ijDir, "update/plugins/Obsolete.jar");
+		assertTrue(marker.isFile());
+		assertEquals(0, marker.length());
+		assertEquals("NOT_INSTALLED", obsolete.status);
+	}
+
+	/**
+	 * Mimics the updater's {@code Progress}, recording the overall counts.
+	 */
+	public static class Progress {
+		public final List<String> counts = new ArrayList<String>();
+
+		public void setCount(int count, int total) {
+			counts.add(count + "/" + total);
+		}
+	}
+
+	@Test
+	public void testProgressCountsBytes() throws IOException {
+		FileObject foo = addFile("jars/foo.jar", "12345");
+		FileObject bar = addFile("jars/bar.jar", "1234567890");
+		Progress progress = new Progress();
+		new ParallelInstaller(adapter, files, progress, ijDir, 1).start(Arrays.<Object>asList(foo, bar));
+		assertEquals("0/15", progress.counts.get(0));
+		assertEquals("15/15", progress.counts.get(progress.counts.size() - 1));
+	}
+
+	@Test
+	public void testFailureWaitsForAllFiles() throws IOException {
+		FileObject missing = addFile("jars/missing.jar", "missing");
+		new File(site, "jars/missing.jar").delete();
+		FileObject present = addFile("jars/present.jar", "present");
+		try {
+			install(missing, present);
+			fail("Missing file was not reported");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("missing.jar"));
+		}
+		assertEquals("present", TestUtils.read(new File(ijDir, "update/jars/present.jar")));
+	}
+
+	@Test
+	public void testStoreIsVerified() throws IOException {
+		File store = folder.newFolder("store");
+		FileObject file = addFile("jars/baz.jar", "shared version");
+		ParallelInstaller installer = new ParallelInstaller(adapter, files, new Object(), ijDir, 1);
+		installer.setSharedArtifacts(new SharedArtifacts(store));
+		installer.start(Arrays.<Object>asList(file));
+		File shared = new File(store, file.checksum);
+		assertEquals("shared version", TestUtils.read(shared));
+		assertTrue(shared.canWrite());
+
+		// e.g. modified via a hard-linked install
+		TestUtils.write(shared, "modified version");
+		installer = new ParallelInstaller(adapter, files, new Object(), ijDir, 1);
+		installer.setSharedArtifacts(new SharedArtifacts(store));
+		installer.start(Arrays.<Object>asList(file));
+		assertEquals("shared version", TestUtils.read(shared));
+		assertEquals("shared version", TestUtils.read(new File(ijDir, "update/jars/baz.jar")));
+	}
+
+	@Test
+	public void testStoreIsUsedByDefault() throws IOException {
+		File store = folder.newFolder("store");
+		FileObject file = addFile("jars/baz.jar", "shared version");
+		String storeProperty = System.getProperty(SharedArtifacts.STORE_PROPERTY);
+		try {
+			System.setProperty(SharedArtifacts.STORE_PROPERTY, store.getPath());
+			install(file);
+		} finally {
+			TestUtils.restoreProperty(SharedArtifacts.STORE_PROPERTY, storeProperty);
+		}
+		assertEquals("shared version", TestUtils.read(new File(store, file.checksum)));
+	}
+
+	@Test
+	public void testJarDigestedWhileDownloading() throws IOException {
+		final List<String> readBack = new ArrayList<String>();
+		adapter = new Adapter(false) {
+			@Override
+			String getUpdaterDigest(String path, File file) throws IOException {
+				if (file.getPath().startsWith(new File(ijDir, "update").getPath()))
+					readBack.add(path);
+				return FileDigest.handles(path) ? FileDigest.digest(path, file) : JarDigest.digest(file);
+			}
+		};
+		File jar = TestUtils.jar(new File(site, "jars/qux.jar"), "b.txt", "second", "a.txt", "first");
+		FileObject file = new FileObject();
+		file.filename = "jars/qux.jar";
+		file.checksum = JarDigest.digest(jar);
+		file.filesize = jar.length();
+		files.put(file.filename, file);
+		install(file);
+		assertTrue(readBack.toString(), readBack.isEmpty());
+		assertEquals(jar.length(), new File(ijDir, "update/jars/qux.jar").length());
+	}
+
+	@Test
+	public void testUnsupportedJarIsReadBack() throws IOException {
+		// a .jar file that JarDigest cannot parse: its checksum has to be computed from the file
+		FileObject file = addFile("jars/plain.jar", "not a .jar file");
+		install(file);
+		assertEquals("not a .jar file", TestUtils.read(new File(ijDir, "update/jars/plain.jar")));
+	}
+
+	private FileObject addFile(String filename, String contents) throws IOException {
+		File remote = new File(site, filename);
+		TestUtils.write(remote, contents);
+		FileObject file = new FileObject();
+		file.filename = filename;
+		file.checksum = FileDigest.digest(filename, remote);
+		file.filesize = remote.length();
+		files.put(filename, file);
+		return file;
+	}
+
+	private void install(Object... toInstall) throws IOException {
+		new ParallelInstaller(adapter, files, new Object(), ijDir, 2).start(Arrays.asList(toInstall));
+	}
+}
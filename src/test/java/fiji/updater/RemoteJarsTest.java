@@ -0,0 +1,176 @@
+package fiji.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Verifies that {@link RemoteJars} downloads the remote updater's
+ * <i>.jar</i> files concurrently, and rejects corrupt ones.
+ */
+public class RemoteJarsTest {
+	private final static String ENTRY_NAME = "imagej/updater/Example.class";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private File cacheDir;
+	private String prefix;
+
+	/**
+	 * Whether to serve corrupt <i>.jar</i> files.
+	 */
+	private volatile boolean corrupt;
+
+	/**
+	 * Counted down by each request; every response waits until all
+	 * <i>.jar</i> files were requested.
+	 */
+	private volatile CountDownLatch requests;
+
+	@Before
+	public void setUp() throws IOException {
+		cacheDir = folder.getRoot();
+		requests = new CountDownLatch(Adapter.JARS.length);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/jars/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					requests.countDown();
+					if (!requests.await(10, TimeUnit.SECONDS)) {
+						exchange.sendResponseHeaders(503, -1);
+						return;
+					}
+					byte[] jar = makeJar(exchange.getRequestURI().getPath());
+					if (corrupt)
+						jar[30 + ENTRY_NAME.length() + 3] ^= 0xff;
+					exchange.sendResponseHeaders(200, jar.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(jar);
+					out.close();
+				} catch (InterruptedException e) {
+					exchange.sendResponseHeaders(500, -1);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+		prefix = "http://127.0.0.1:" + server.getAddress().getPort() + "/jars/";
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConcurrentDownload() throws IOException {
+		RemoteJars remote = new RemoteJars(prefix, cacheDir);
+		assertNull(remote.getCached());
+		// the server answers only once all files were requested
+		File[] files = remote.download();
+		assertEquals(Adapter.JARS.length, files.length);
+		for (int i = 0; i < files.length; i++) {
+			assertEquals(remote.getCachedFile(i), files[i]);
+			assertTrue(RemoteJars.isValid(files[i]));
+		}
+		assertTrue(remote.getCached() != null);
+		// only the files and their checksums are left behind
+		assertEquals(2 * Adapter.JARS.length, cacheDir.list().length);
+		for (File file : files)
+			assertEquals(FileDigest.digest(file), readChecksum(file));
+
+		// cached files are not downloaded again
+		requests = new CountDownLatch(1);
+		remote.download();
+		assertEquals(1, requests.getCount());
+	}
+
+	@Test
+	public void testCorruptJar() throws IOException {
+		corrupt = true;
+		RemoteJars remote = new RemoteJars(prefix, cacheDir);
+		try {
+			remote.download();
+			fail("corrupt .jar files were accepted");
+		} catch (IOException e) {
+			// expected
+		}
+		assertNull(remote.getCached());
+		for (int i = 0; i < Adapter.JARS.length; i++)
+			assertFalse(RemoteJars.isValid(remote.getCachedFile(i)));
+		// no temporary files are left behind
+		assertEquals(0, cacheDir.list().length);
+	}
+
+	/**
+	 * Make a small <i>.jar</i> file with a single stored entry.
+	 *
+	 * The entry is stored rather than deflated, so that flipping a byte of its
+	 * contents is caught by the CRC-32.
+	 *
+	 * @param path
+	 *            the path of the request, written into the entry
+	 * @return the contents of the <i>.jar</i> file
+	 * @throws IOException
+	 */
+	private static byte[] makeJar(String path) throws IOException {
+		byte[] contents = ("Contents of " + path).getBytes("UTF-8");
+		ZipEntry entry = new ZipEntry(ENTRY_NAME);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(contents.length);
+		CRC32 crc = new CRC32();
+		crc.update(contents);
+		entry.setCrc(crc.getValue());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(out);
+		zip.putNextEntry(entry);
+		zip.write(contents);
+		zip.closeEntry();
+		zip.close();
+		return out.toByteArray();
+	}
+
+	private static String readChecksum(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file.getPath() + ".sha1"));
+		try {
+			return reader.readLine();
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package fiji.updater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Helpers shared by the tests to set up and inspect files.
+ */
+class TestUtils {
+	private TestUtils() {
+		// utility class
+	}
+
+	/**
+	 * Write a file, making its parent directory if necessary.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @param contents
+	 *            the contents
+	 * @throws IOException
+	 */
+	static void write(File file, byte[] contents) throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write a text file, making its parent directory if necessary.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @param contents
+	 *            the contents, written as UTF-8
+	 * @throws IOException
+	 */
+	static void write(File file, String contents) throws IOException {
+		write(file, contents.getBytes("UTF-8"));
+	}
+
+	/**
+	 * Write a gzipped text file, such as a <i>db.xml.gz</i>.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @param contents
+	 *            the uncompressed contents, written as UTF-8
+	 * @throws IOException
+	 */
+	static void writeGzipped(File file, String contents) throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+		try {
+			out.write(contents.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Make a <i>.jar</i> file.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @param namesAndContents
+	 *            the entries' names, alternating with their contents
+	 * @return the file
+	 * @throws IOException
+	 */
+	static File jar(File file, String... namesAndContents) throws IOException {
+		file.getParentFile().mkdirs();
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+		try {
+			for (int i = 0; i + 1 < namesAndContents.length; i += 2) {
+				out.putNextEntry(new ZipEntry(namesAndContents[i]));
+				out.write(namesAndContents[i + 1].getBytes("UTF-8"));
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Read a stream completely, and close it.
+	 *
+	 * @param in
+	 *            the stream
+	 * @return the contents
+	 * @throws IOException
+	 */
+	static byte[] readBytes(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[16384];
+			for (;;) {
+				int count = in.read(buffer);
+				if (count < 0)
+					return out.toByteArray();
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read a file completely.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the contents
+	 * @throws IOException
+	 */
+	static byte[] readBytes(File file) throws IOException {
+		return readBytes(new FileInputStream(file));
+	}
+
+	/**
+	 * Read a text file.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the contents, decoded as UTF-8
+	 * @throws IOException
+	 */
+	static String read(File file) throws IOException {
+		return new String(readBytes(file), "UTF-8");
+	}
+
+	/**
+	 * Copy a file, making the target's parent directory if necessary.
+	 *
+	 * @param source
+	 *            the file to copy
+	 * @param target
+	 *            the copy
+	 * @throws IOException
+	 */
+	static void copy(File source, File target) throws IOException {
+		write(target, readBytes(source));
+	}
+
+	/**
+	 * Restore a system property to the value it had before a test.
+	 *
+	 * @param key
+	 *            the name of the property
+	 * @param value
+	 *            the previous value, or <i>null</i> if it was not set
+	 */
+	static void restoreProperty(String key, String value) {
+		if (value == null)
+			System.clearProperty(key);
+		else
+			System.setProperty(key, value);
+	}
+}